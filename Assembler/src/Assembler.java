@@ -1,20 +1,38 @@
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class Assembler {
+    private static final String USAGE = "Usage: java Assembler [--rom-report file] <filename>";
     private static final int length = 16;
-    private static int symbolCounter = 16;
+    private static final int ROM_SIZE = 32768;
+    private static final int OFFENDERS = 10;
+    private int symbolCounter = 16;
     private final Parser parser;
-    private final Parser parserMain;
-    private final FileWriter writer;
+    private final Writer writer;
     private final BufferedWriter bw;
     private final SymbolTable st;
+    // Words of ROM by function, in program order. A label with a dot and no $ starts a function, as
+    // VMTranslator names them; whatever comes before the first one is the bootstrap.
+    private final Map<String, Integer> words = new LinkedHashMap<>();
+    private int total;
 
     public Assembler(String source) throws IOException {
-        parser = new Parser(source);
-        parserMain = new Parser(source);
-        writer = new FileWriter(source.replace(".asm", ".hack"));
+        this(new Parser(source), new FileWriter(source.replace(".asm", ".hack")));
+    }
+
+    // parser is only used for the first pass, which collects the labels.
+    public Assembler(Parser parser, Writer output) {
+        this.parser = parser;
+        writer = output;
         bw = new BufferedWriter(writer);
         st = new SymbolTable();
     }
@@ -46,49 +64,135 @@ public class Assembler {
 
     private void firstPass() {
         int counter = 0;
+        String function = "bootstrap";
         while (parser.hasMoreLines()) {
             parser.advance();
             if (parser.instructionType().equals("A_INSTRUCTION") || parser.instructionType().equals("C_INSTRUCTION")) {
                 counter++;
+                words.merge(function, 1, Integer::sum);
             }
-            else if (parser.instructionType().equals("L_INSTRUCTION"))
+            else if (parser.instructionType().equals("L_INSTRUCTION")) {
                 st.addEntry(parser.symbol(), counter);
+                if (parser.symbol().contains(".") && !parser.symbol().contains("$")) function = parser.symbol();
+            }
         }
+        total = counter;
     }
 
-    public static void main(String[] args) throws IOException {
-        Assembler asm = new Assembler(args[0]);
-        asm.firstPass();
+    // Functions by size, largest first.
+    private List<Map.Entry<String, Integer>> bySize() {
+        List<Map.Entry<String, Integer>> functions = new ArrayList<>(words.entrySet());
+        functions.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+        return functions;
+    }
+
+    // Throws if the program does not fit in ROM, naming the largest functions.
+    private void checkSize() {
+        if (total <= ROM_SIZE) return;
+        StringBuilder message = new StringBuilder(STR."The program needs \{total} words of ROM, \{total - ROM_SIZE} more than the \{ROM_SIZE} there are. The largest functions:");
+        for (Map.Entry<String, Integer> f : bySize().subList(0, Math.min(OFFENDERS, words.size()))) {
+            message.append(STR."\n  \{f.getKey()} \{f.getValue()}");
+        }
+        throw new IllegalStateException(message.toString());
+    }
+
+    // As JSON if path ends in .json, else as CSV with one row for each function.
+    private void writeReport(Path path) throws IOException {
+        List<String> lines = new ArrayList<>();
+        List<Map.Entry<String, Integer>> functions = bySize();
+        if (path.toString().endsWith(".json")) {
+            lines.add(STR."{\"total\": \{total}, \"functions\": [");
+            for (int i = 0; i < functions.size(); i++) {
+                Map.Entry<String, Integer> f = functions.get(i);
+                lines.add(STR."  {\"function\": \"\{f.getKey()}\", \"words\": \{f.getValue()}}\{i + 1 < functions.size() ? "," : ""}");
+            }
+            lines.add("]}");
+        }
+        else {
+            lines.add("function,words");
+            for (Map.Entry<String, Integer> f : functions) lines.add(STR."\{f.getKey()},\{f.getValue()}");
+        }
+        Files.write(path, lines);
+    }
 
+    private void secondPass(Parser parserMain) throws IOException {
         do {
-            asm.parserMain.advance();
+            parserMain.advance();
             String binary;
-            String insType = asm.parserMain.instructionType();
+            String insType = parserMain.instructionType();
             if (insType.equals("L_INSTRUCTION")) {
                 continue;
             }
             if (insType.equals("C_INSTRUCTION")) {
-                binary = STR."111\{Code.comp(asm.parserMain.comp())}\{Code.dest(asm.parserMain.dest())}\{Code.jump(asm.parserMain.jump())}";
+                binary = STR."111\{Code.comp(parserMain.comp())}\{Code.dest(parserMain.dest())}\{Code.jump(parserMain.jump())}";
             }
             else {
-                String s = asm.parserMain.symbol();
+                String s = parserMain.symbol();
                 if (isNumeric(s)) {
                     binary = padLeftZeros(Integer.toBinaryString(Integer.parseInt(s)));
                 }
-                else if (asm.st.contains(s)) {
-                    binary = padLeftZeros(Integer.toBinaryString(asm.st.getAddress(s)));
+                else if (st.contains(s)) {
+                    binary = padLeftZeros(Integer.toBinaryString(st.getAddress(s)));
                 }
                 else {
-                    asm.st.addEntry(s, symbolCounter);
+                    st.addEntry(s, symbolCounter);
                     binary = padLeftZeros(Integer.toBinaryString(symbolCounter));
                     symbolCounter++;
                 }
             }
-            asm.bw.write(binary);
-            asm.bw.newLine();
-        } while (asm.parserMain.hasMoreLines());
+            bw.write(binary);
+            bw.newLine();
+        } while (parserMain.hasMoreLines());
+    }
+
+    private void close() throws IOException {
+        bw.close();
+        writer.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        String source = null;
+        Path report = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--rom-report") && i + 1 < args.length) report = Path.of(args[++i]);
+            else if (args[i].startsWith("-") || source != null) throw new IllegalArgumentException(USAGE);
+            else source = args[i];
+        }
+        if (source == null) throw new IllegalArgumentException(USAGE);
+        Assembler asm = new Assembler(source);
+        asm.firstPass();
+        if (report != null) asm.writeReport(report);
+        try {
+            asm.checkSize();
+        } catch (IllegalStateException e) {
+            // No .hack rather than an empty one.
+            asm.close();
+            Files.delete(Path.of(source.replace(".asm", ".hack")));
+            throw e;
+        }
+        asm.secondPass(new Parser(source));
+        asm.close();
+    }
 
-        asm.bw.close();
-        asm.writer.close();
+    // Assembles instructions as they arrive. The first pass runs while source is still being produced;
+    // the lines are kept for the second pass. Used to run the whole toolchain in one JVM, so it only takes JDK types.
+    public static void assemble(Iterator<String> source, Writer output) throws IOException {
+        List<String> lines = new ArrayList<>();
+        Iterator<String> recording = new Iterator<>() {
+            public boolean hasNext() {
+                return source.hasNext();
+            }
+
+            public String next() {
+                String line = source.next();
+                lines.add(line);
+                return line;
+            }
+        };
+        Assembler asm = new Assembler(new Parser(recording), output);
+        asm.firstPass();
+        asm.checkSize();
+        asm.secondPass(new Parser(lines.iterator()));
+        asm.close();
     }
 }
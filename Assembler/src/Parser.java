@@ -1,11 +1,13 @@
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.Objects;
-import java.util.Scanner;
 
 public class Parser {
-    private final Scanner reader;
+    private final Iterator<String> reader;
     private String instruction;
     public int counter = -1;
 
@@ -13,7 +15,7 @@ public class Parser {
         // Initialize.
         try {
             File obj = new File(f);
-            reader = new Scanner(obj);
+            reader = new BufferedReader(new FileReader(obj)).lines().iterator();
         }
         catch (FileNotFoundException e) {
             throw new NoSuchElementException("File not found.");
@@ -24,11 +26,16 @@ public class Parser {
         }
     }
 
-    public boolean hasMoreLines() {return reader.hasNextLine();}
+    // Reads instructions that are already in memory, one per element.
+    public Parser(Iterator<String> lines) {
+        reader = lines;
+    }
+
+    public boolean hasMoreLines() {return reader.hasNext();}
 
     public void advance() {
         // Assume hasMoreLines() is true.
-        String line = reader.nextLine().trim().replaceAll("//.*", "");
+        String line = reader.next().trim().replaceAll("//.*", "");
         if (!line.isEmpty()) {counter++; instruction = line;}
         else {advance();}
     }
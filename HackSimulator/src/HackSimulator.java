@@ -0,0 +1,201 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Runs a .hack program without a screen or keyboard, until it reaches Sys.halt, jumps to itself, or runs out
+// of cycles. Sys.halt is only known from the .asm next to the .hack; without it, a program that halts with a
+// longer loop runs until --cycles.
+//
+// With --profile, it also writes where the cycles went, by function, for VMTranslator --profile:
+//
+//   # comment
+//   function name calls cycles     for each function that ran; cycles leaves out the ones spent in its callees
+//   call caller callee calls       for each function that called another
+//
+// Functions are found through the labels of the .asm next to the .hack: a label with a dot and no $ starts a
+// function, which runs up to the next one. A CALL label marks the jump of a call sequence, and a jump from
+// there to the first instruction of a function is a call to it from the function the jump is in. Other jumps
+// there, such as a loop back to the top of a function, are not calls.
+public class HackSimulator {
+    private static final String USAGE = "Usage: java HackSimulator [--cycles n] [--profile file] [--ram address count] program.hack";
+    private static final int RAM_SIZE = 32768;
+
+    private final short[] rom;
+    private final short[] ram = new short[RAM_SIZE];
+    // The function each instruction belongs to, by index into names; 0 is the code before the first function.
+    private final int[] function;
+    private final boolean[] entry;
+    // The instructions labeled CALL, whose jumps are calls.
+    private final boolean[] callSite;
+    private final List<String> names = new ArrayList<>(List.of("bootstrap"));
+    private int halt = -1;
+    private long cycles;
+    private boolean halted;
+
+    private final boolean profiling;
+    private final long[] calls;
+    private final long[] self;
+    // Calls by caller and callee, the two indexes packed into one key.
+    private final Map<Long, Long> edges = new HashMap<>();
+
+    public HackSimulator(List<String> hack, List<String> asm, boolean profiling) {
+        rom = new short[hack.size()];
+        for (int i = 0; i < rom.length; i++) rom[i] = (short) Integer.parseInt(hack.get(i).trim(), 2);
+        function = new int[rom.length];
+        entry = new boolean[rom.length + 1];
+        callSite = new boolean[rom.length + 1];
+        this.profiling = profiling;
+        if (asm != null) readLabels(asm);
+        calls = new long[names.size()];
+        self = new long[names.size()];
+    }
+
+    // The same first pass as the assembler's: a label is the address of the instruction after it.
+    private void readLabels(List<String> asm) {
+        int address = 0;
+        for (String line : asm) {
+            line = line.replaceAll("//.*", "").trim();
+            if (line.isEmpty()) continue;
+            if (!line.startsWith("(")) {
+                if (address < rom.length) function[address] = names.size() - 1;
+                address++;
+                continue;
+            }
+            String label = line.substring(1, line.length() - 1);
+            if (label.equals("Sys.halt")) halt = address;
+            if (label.matches("CALL\\d+") && address < callSite.length) callSite[address] = true;
+            if (label.contains(".") && !label.contains("$")) {
+                names.add(label);
+                if (address < entry.length) entry[address] = true;
+            }
+        }
+        if (address != rom.length) {
+            throw new IllegalArgumentException(STR."The .asm has \{address} instructions but the .hack has \{rom.length}.");
+        }
+    }
+
+    public void run(long limit) {
+        int a = 0, d = 0, pc = 0;
+        while (pc != halt && cycles < limit) {
+            if (pc >= rom.length) throw new IllegalStateException(STR."Jumped to \{pc}, past the end of the program.");
+            int instruction = rom[pc] & 0xFFFF;
+            cycles++;
+            if (profiling) self[function[pc]]++;
+            if ((instruction & 0x8000) == 0) {
+                a = instruction;
+                pc++;
+                continue;
+            }
+            // x is D, y is A or M; the six control bits zero and negate x and y, add or and them, and negate the result.
+            int x = d;
+            int y = (instruction & 0x1000) != 0 ? ram[a & 0x7FFF] : a;
+            int c = (instruction >> 6) & 0x3F;
+            if ((c & 0x20) != 0) x = 0;
+            if ((c & 0x10) != 0) x = ~x;
+            if ((c & 0x08) != 0) y = 0;
+            if ((c & 0x04) != 0) y = ~y;
+            int out = (c & 0x02) != 0 ? x + y : x & y;
+            if ((c & 0x01) != 0) out = ~out;
+            out = (short) out;
+            int address = a & 0x7FFF;
+            if ((instruction & 0x20) != 0) a = out;
+            if ((instruction & 0x10) != 0) d = out;
+            if ((instruction & 0x08) != 0) ram[address] = (short) out;
+            int jump = instruction & 0x7;
+            boolean taken = (out < 0 && (jump & 4) != 0) || (out == 0 && (jump & 2) != 0) || (out > 0 && (jump & 1) != 0);
+            if (!taken) {
+                pc++;
+                continue;
+            }
+            // @L, 0;JMP at L: the program has stopped.
+            if (address == pc - 1 && rom[address] == address && jump == 7) {
+                halted = true;
+                return;
+            }
+            if (profiling && callSite[pc] && entry[address]) {
+                calls[function[address]]++;
+                edges.merge((long) function[pc] << 32 | function[address], 1L, Long::sum);
+            }
+            pc = address;
+        }
+        halted = pc == halt;
+    }
+
+    public void writeProfile(Path path, String program) throws IOException {
+        try (BufferedWriter bw = Files.newBufferedWriter(path)) {
+            bw.write(STR."# profile of \{program}: \{cycles} cycles"); bw.newLine();
+            List<Integer> ran = new ArrayList<>();
+            for (int i = 1; i < names.size(); i++) {
+                if (calls[i] > 0 || self[i] > 0) ran.add(i);
+            }
+            ran.sort(Comparator.comparingLong((Integer i) -> self[i]).reversed());
+            for (int i : ran) {
+                bw.write(STR."function \{names.get(i)} \{calls[i]} \{self[i]}"); bw.newLine();
+            }
+            List<Map.Entry<Long, Long>> called = new ArrayList<>(edges.entrySet());
+            called.sort(Map.Entry.<Long, Long>comparingByValue().reversed());
+            for (Map.Entry<Long, Long> e : called) {
+                String caller = names.get((int) (e.getKey() >> 32));
+                String callee = names.get((int) (long) e.getKey());
+                bw.write(STR."call \{caller} \{callee} \{e.getValue()}"); bw.newLine();
+            }
+        }
+    }
+
+    // Runs a program as main does and returns the cycles it took, or -1 if it was stopped at limit, followed by
+    // count words of RAM from start. Used to run programs from the toolchain's JVM, so it only takes JDK types.
+    public static long[] simulate(List<String> hack, List<String> asm, long limit, int start, int count) {
+        HackSimulator simulator = new HackSimulator(hack, asm, false);
+        simulator.run(limit);
+        long[] result = new long[count + 1];
+        result[0] = simulator.halted ? simulator.cycles : -1;
+        for (int i = 0; i < count; i++) result[i + 1] = simulator.ram[start + i];
+        return result;
+    }
+
+    public static void main(String[] args) throws IOException {
+        long limit = 1_000_000_000L;
+        Path profile = null;
+        int ramStart = 0, ramCount = 0;
+        Path program = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--cycles" -> limit = Long.parseLong(value(args, ++i));
+                case "--profile" -> profile = Path.of(value(args, ++i));
+                case "--ram" -> {
+                    ramStart = Integer.parseInt(value(args, ++i));
+                    ramCount = Integer.parseInt(value(args, ++i));
+                }
+                default -> {
+                    if (args[i].startsWith("-") || program != null) throw new IllegalArgumentException(USAGE);
+                    program = Path.of(args[i]);
+                }
+            }
+        }
+        if (program == null) throw new IllegalArgumentException(USAGE);
+        Path asm = Path.of(program.toString().replaceAll("\\.hack$", ".asm"));
+        if (profile != null && !Files.exists(asm)) {
+            throw new IllegalArgumentException(STR."--profile needs \{asm} to find the functions.");
+        }
+        HackSimulator simulator = new HackSimulator(Files.readAllLines(program), Files.exists(asm) ? Files.readAllLines(asm) : null, profile != null);
+        simulator.run(limit);
+        System.out.println(STR."\{simulator.cycles} cycles\{simulator.halted ? "" : ", stopped at the limit"}");
+        if (ramCount > 0) {
+            List<String> values = new ArrayList<>();
+            for (int i = ramStart; i < ramStart + ramCount; i++) values.add(String.valueOf(simulator.ram[i]));
+            System.out.println(String.join(" ", values));
+        }
+        if (profile != null) simulator.writeProfile(profile, program.getFileName().toString());
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length) throw new IllegalArgumentException(USAGE);
+        return args[i];
+    }
+}
@@ -0,0 +1,217 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.NoSuchElementException;
+
+public class Ast {
+    // Every node of a class lives in the same set of parallel arrays, indexed by node id.
+    // Children are kept as a singly linked list through first/next, so no per-node objects are allocated.
+    public enum Node {
+        CLASS, CLASS_VAR, SUBROUTINE, PARAMETER, LOCAL, BLOCK,
+        LET, IF, WHILE, DO, RETURN,
+        INT, STRING, TRUE, FALSE, NULL, THIS, VAR, INDEX, UNARY, BINARY, CALL
+    }
+
+    // Subroutine kinds, stored in the value slot of a SUBROUTINE node.
+    public static final int CONSTRUCTOR = 0;
+    public static final int FUNCTION = 1;
+    public static final int METHOD = 2;
+
+    public static final int NONE = -1;
+    private static final Node[] nodes = Node.values();
+
+    private byte[] kind;
+    private int[] value;
+    private int[] name;
+    private int[] type;
+    private int[] first;
+    private int[] last;
+    private int[] next;
+    private int size;
+
+    private final ArrayList<String> names = new ArrayList<>();
+    private final HashMap<String, Integer> nameIndex = new HashMap<>();
+
+    public Ast() {
+        this(256);
+    }
+
+    public Ast(int capacity) {
+        kind = new byte[capacity];
+        value = new int[capacity];
+        name = new int[capacity];
+        type = new int[capacity];
+        first = new int[capacity];
+        last = new int[capacity];
+        next = new int[capacity];
+    }
+
+    private void grow() {
+        int capacity = kind.length * 2;
+        kind = Arrays.copyOf(kind, capacity);
+        value = Arrays.copyOf(value, capacity);
+        name = Arrays.copyOf(name, capacity);
+        type = Arrays.copyOf(type, capacity);
+        first = Arrays.copyOf(first, capacity);
+        last = Arrays.copyOf(last, capacity);
+        next = Arrays.copyOf(next, capacity);
+    }
+
+    public int intern(String s) {
+        if (s == null) return NONE;
+        Integer index = nameIndex.get(s);
+        if (index == null) {
+            index = names.size();
+            names.add(s);
+            nameIndex.put(s, index);
+        }
+        return index;
+    }
+
+    public int add(Node k, int v, String n, String t) {
+        if (size == kind.length) grow();
+        int id = size++;
+        kind[id] = (byte) k.ordinal();
+        value[id] = v;
+        name[id] = intern(n);
+        type[id] = intern(t);
+        first[id] = NONE;
+        last[id] = NONE;
+        next[id] = NONE;
+        return id;
+    }
+
+    public int add(Node k, int v) {
+        return add(k, v, null, null);
+    }
+
+    public int add(Node k, String n) {
+        return add(k, 0, n, null);
+    }
+
+    public void append(int parent, int child) {
+        if (child == NONE) return;
+        if (first[parent] == NONE) first[parent] = child;
+        else next[last[parent]] = child;
+        last[parent] = child;
+        next[child] = NONE;
+    }
+
+    public void setValue(int id, int v) {
+        value[id] = v;
+    }
+
+    // Turns a node into a different one in place, dropping its children, name and type.
+    public void rewrite(int id, Node k, int v) {
+        kind[id] = (byte) k.ordinal();
+        value[id] = v;
+        name[id] = NONE;
+        type[id] = NONE;
+        first[id] = NONE;
+        last[id] = NONE;
+    }
+
+    public void removeChildren(int id) {
+        first[id] = NONE;
+        last[id] = NONE;
+    }
+
+    // Puts newChild where oldChild was in the child list of parent.
+    public void replace(int parent, int oldChild, int newChild) {
+        int prev = NONE;
+        for (int c = first[parent]; c != NONE; prev = c, c = next[c]) {
+            if (c != oldChild) continue;
+            next[newChild] = next[c];
+            if (prev == NONE) first[parent] = newChild;
+            else next[prev] = newChild;
+            if (last[parent] == c) last[parent] = newChild;
+            return;
+        }
+        throw new NoSuchElementException(STR."\{oldChild} is not a child of \{parent}.");
+    }
+
+    public Node kind(int id) {
+        return nodes[kind[id]];
+    }
+
+    public int value(int id) {
+        return value[id];
+    }
+
+    public boolean isConstant(int id) {
+        return switch (kind(id)) {
+            case INT, TRUE, FALSE, NULL -> true;
+            default -> false;
+        };
+    }
+
+    // The 16-bit value of a constant node.
+    public int constantValue(int id) {
+        return switch (kind(id)) {
+            case INT -> (short) value[id];
+            case TRUE -> -1;
+            default -> 0;
+        };
+    }
+
+    // An expression can only be dropped if evaluating it has no side effects.
+    public boolean isPure(int id) {
+        if (kind(id) == Node.CALL || kind(id) == Node.STRING) return false;
+        for (int c = first[id]; c != NONE; c = next[c]) {
+            if (!isPure(c)) return false;
+        }
+        return true;
+    }
+
+    public String name(int id) {
+        return name[id] == NONE ? null : names.get(name[id]);
+    }
+
+    public String type(int id) {
+        return type[id] == NONE ? null : names.get(type[id]);
+    }
+
+    public int first(int id) {
+        return first[id];
+    }
+
+    public int next(int id) {
+        return next[id];
+    }
+
+    // Returns the i-th child, or NONE if there are fewer children.
+    public int child(int id, int i) {
+        int c = first[id];
+        while (c != NONE && i-- > 0) c = next[c];
+        return c;
+    }
+
+    public int childCount(int id) {
+        int count = 0;
+        for (int c = first[id]; c != NONE; c = next[c]) count++;
+        return count;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String toString(int id) {
+        StringBuilder sb = new StringBuilder();
+        dump(id, 0, sb);
+        return sb.toString();
+    }
+
+    private void dump(int id, int depth, StringBuilder sb) {
+        sb.append("  ".repeat(depth)).append(kind(id));
+        switch (kind(id)) {
+            case INT, SUBROUTINE, CLASS_VAR -> sb.append(' ').append(value[id]);
+            case UNARY, BINARY -> sb.append(' ').append((char) value[id]);
+            default -> {}
+        }
+        if (name[id] != NONE) sb.append(' ').append(name(id));
+        if (type[id] != NONE) sb.append(" : ").append(type(id));
+        sb.append('\n');
+        for (int c = first[id]; c != NONE; c = next[c]) dump(c, depth + 1, sb);
+    }
+}
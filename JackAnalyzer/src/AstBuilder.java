@@ -0,0 +1,345 @@
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class AstBuilder {
+    private final JackTokenizer jt;
+    private final Ast ast;
+
+    private static final HashSet<String> ops = new HashSet<>();
+
+    static {
+        final String[] op = new String[] {"+",  "-",  "*",  "/",  "&",  "|",  "<",  ">",  "="};
+        ops.addAll(Arrays.asList(op));
+    }
+
+    public AstBuilder(JackTokenizer input) {
+        jt = input;
+        ast = new Ast();
+    }
+
+    public Ast ast() {
+        return ast;
+    }
+
+    private boolean isKeyword(String keyword) {
+        return jt.tokenType() == JackTokenizer.tokenTypes.keyword && jt.KeyWord().equals(keyword);
+    }
+
+    private boolean isSymbol(char c) {
+        return jt.tokenType() == JackTokenizer.tokenTypes.symbol && jt.symbol() == c;
+    }
+
+    private void interrupt() {
+        throw new RuntimeException(STR."Syntax error found for \{jt.KeyWord()}");
+    }
+
+    private String fetchAndAdvance(JackTokenizer.tokenTypes type) {
+        String result = switch (type) {
+            case keyword -> jt.KeyWord();
+            case identifier -> jt.identifier();
+            case symbol -> String.valueOf(jt.symbol());
+            default -> throw new UnsupportedOperationException(STR."fetch \{type} Not implemented.");
+        };
+        jt.advance();
+        return result;
+    }
+
+    private String fetchType() {
+        return fetchAndAdvance(jt.tokenType() == JackTokenizer.tokenTypes.keyword ? JackTokenizer.tokenTypes.keyword : JackTokenizer.tokenTypes.identifier);
+    }
+
+    // Returns the id of the CLASS node, which is always the root of the tree.
+    public int parseClass() {
+        int node = Ast.NONE;
+        if (isKeyword("class")) {
+            // keyword, identifier, open bracket
+            jt.advance();
+            node = ast.add(Ast.Node.CLASS, fetchAndAdvance(JackTokenizer.tokenTypes.identifier));
+            jt.advance();
+        } else interrupt();
+
+        while (isKeyword("field") || isKeyword("static")) {
+            parseClassVarDec(node);
+        }
+        while (isKeyword("constructor") || isKeyword("method") || isKeyword("function")) {
+            ast.append(node, parseSubroutine());
+        }
+
+        if (isSymbol('}')) {
+            jt.advance();
+        } else interrupt();
+        return node;
+    }
+
+    private void parseClassVarDec(int parent) {
+        // kind, type, identifier (, identifier)* ;
+        SymbolTable.Kind kind = SymbolTable.Kind.valueOf(fetchAndAdvance(JackTokenizer.tokenTypes.keyword).toUpperCase());
+        String type = fetchType();
+        ast.append(parent, ast.add(Ast.Node.CLASS_VAR, kind.ordinal(), fetchAndAdvance(JackTokenizer.tokenTypes.identifier), type));
+        while (isSymbol(',')) {
+            jt.advance();
+            ast.append(parent, ast.add(Ast.Node.CLASS_VAR, kind.ordinal(), fetchAndAdvance(JackTokenizer.tokenTypes.identifier), type));
+        }
+        // ;
+        jt.advance();
+    }
+
+    private int parseSubroutine() {
+        int kind = switch (fetchAndAdvance(JackTokenizer.tokenTypes.keyword)) {
+            case "constructor" -> Ast.CONSTRUCTOR;
+            case "method" -> Ast.METHOD;
+            default -> Ast.FUNCTION;
+        };
+        String returnType = fetchType();
+        int node = ast.add(Ast.Node.SUBROUTINE, kind, fetchAndAdvance(JackTokenizer.tokenTypes.identifier), returnType);
+        // (
+        jt.advance();
+        while (!isSymbol(')')) {
+            if (isSymbol(',')) {
+                jt.advance();
+                continue;
+            }
+            String type = fetchType();
+            ast.append(node, ast.add(Ast.Node.PARAMETER, 0, fetchAndAdvance(JackTokenizer.tokenTypes.identifier), type));
+        }
+        // )
+        jt.advance();
+
+        if (isSymbol('{')) {
+            jt.advance();
+        } else interrupt();
+        while (isKeyword("var")) {
+            jt.advance();
+            String type = fetchType();
+            ast.append(node, ast.add(Ast.Node.LOCAL, 0, fetchAndAdvance(JackTokenizer.tokenTypes.identifier), type));
+            while (!isSymbol(';')) {
+                jt.advance();
+                ast.append(node, ast.add(Ast.Node.LOCAL, 0, fetchAndAdvance(JackTokenizer.tokenTypes.identifier), type));
+            }
+            // ;
+            jt.advance();
+        }
+        ast.append(node, parseStatements());
+        if (isSymbol('}')) {
+            jt.advance();
+        } else interrupt();
+        return node;
+    }
+
+    // Statements are collected in a BLOCK node; parseStatements stops at the closing bracket without consuming it.
+    private int parseStatements() {
+        int block = ast.add(Ast.Node.BLOCK, 0);
+        while (isKeyword("let") || isKeyword("if") || isKeyword("while") || isKeyword("do") || isKeyword("return")) {
+            ast.append(block, switch (jt.KeyWord()) {
+                case "let" -> parseLet();
+                case "if" -> parseIf();
+                case "while" -> parseWhile();
+                case "do" -> parseDo();
+                default -> parseReturn();
+            });
+        }
+        return block;
+    }
+
+    private int parseLet() {
+        // let varName ([ expression ])? = expression ;
+        jt.advance();
+        int node = ast.add(Ast.Node.LET, fetchAndAdvance(JackTokenizer.tokenTypes.identifier));
+        if (isSymbol('[')) {
+            // An indexed LET carries the index expression as its first child.
+            jt.advance();
+            ast.setValue(node, 1);
+            ast.append(node, parseExpression());
+            // ]
+            jt.advance();
+        }
+        // =
+        jt.advance();
+        ast.append(node, parseExpression());
+        // ;
+        jt.advance();
+        return node;
+    }
+
+    private int parseIf() {
+        // if ( expression ) { statements } (else { statements })?
+        jt.advance();
+        jt.advance();
+        int node = ast.add(Ast.Node.IF, 0);
+        ast.append(node, parseExpression());
+        // ) {
+        jt.advance();
+        jt.advance();
+        ast.append(node, parseStatements());
+        // }
+        jt.advance();
+        if (isKeyword("else")) {
+            // else {
+            jt.advance();
+            jt.advance();
+            ast.append(node, parseStatements());
+            // }
+            jt.advance();
+        }
+        return node;
+    }
+
+    private int parseWhile() {
+        // while ( expression ) { statements }
+        jt.advance();
+        jt.advance();
+        int node = ast.add(Ast.Node.WHILE, 0);
+        ast.append(node, parseExpression());
+        // ) {
+        jt.advance();
+        jt.advance();
+        ast.append(node, parseStatements());
+        // }
+        jt.advance();
+        return node;
+    }
+
+    private int parseDo() {
+        // do subroutineCall ;
+        jt.advance();
+        int node = ast.add(Ast.Node.DO, 0);
+        ast.append(node, parseIdentifierTerm());
+        jt.advance();
+        return node;
+    }
+
+    private int parseReturn() {
+        // return expression? ;
+        jt.advance();
+        int node = ast.add(Ast.Node.RETURN, 0);
+        if (!isSymbol(';')) {
+            ast.append(node, parseExpression());
+        }
+        jt.advance();
+        return node;
+    }
+
+    private boolean nextIsOp() {
+        return jt.tokenType() == JackTokenizer.tokenTypes.symbol && ops.contains(String.valueOf(jt.symbol()));
+    }
+
+    // Operators have no precedence and, as in CompilationEngine, associate to the right:
+    // a - b + c is a - (b + c). a <= b is desugared to ~(a > b), matching what CompilationEngine emits.
+    public int parseExpression() {
+        int left = parseTerm();
+        if (!nextIsOp()) return left;
+        char op = fetchAndAdvance(JackTokenizer.tokenTypes.symbol).charAt(0);
+        boolean orEqual = false;
+        if (isSymbol('=')) {
+            // >= or <=
+            orEqual = true;
+            jt.advance();
+            if (op == '<') op = '>';
+            else if (op == '>') op = '<';
+        }
+        int right = parseExpression();
+        int node = ast.add(Ast.Node.BINARY, op);
+        ast.append(node, left);
+        ast.append(node, right);
+        if (orEqual) {
+            int not = ast.add(Ast.Node.UNARY, '~');
+            ast.append(not, node);
+            return not;
+        }
+        return node;
+    }
+
+    public int parseTerm() {
+        switch (jt.tokenType()) {
+            case integerConstant -> {
+                int node = ast.add(Ast.Node.INT, jt.intVal());
+                jt.advance();
+                return node;
+            }
+            case stringConstant -> {
+                int node = ast.add(Ast.Node.STRING, jt.stringVal());
+                jt.advance();
+                return node;
+            }
+            case keyword -> {
+                Ast.Node kind = switch (jt.KeyWord()) {
+                    case "true" -> Ast.Node.TRUE;
+                    case "false" -> Ast.Node.FALSE;
+                    case "null" -> Ast.Node.NULL;
+                    case "this" -> Ast.Node.THIS;
+                    default -> throw new UnsupportedOperationException(STR."write \{jt.KeyWord()} not implemented.");
+                };
+                jt.advance();
+                return ast.add(kind, 0);
+            }
+            case symbol -> {
+                // parentheses
+                if (jt.symbol() == '(') {
+                    jt.advance();
+                    int node = parseExpression();
+                    jt.advance();
+                    return node;
+                }
+                // unary ops
+                else if (jt.symbol() == '-' || jt.symbol() == '~') {
+                    int node = ast.add(Ast.Node.UNARY, fetchAndAdvance(JackTokenizer.tokenTypes.symbol).charAt(0));
+                    ast.append(node, parseTerm());
+                    return node;
+                }
+                interrupt();
+            }
+            case identifier -> {
+                return parseIdentifierTerm();
+            }
+        }
+        return Ast.NONE;
+    }
+
+    private int parseIdentifierTerm() {
+        String identifier = fetchAndAdvance(JackTokenizer.tokenTypes.identifier);
+        if (jt.tokenType() != JackTokenizer.tokenTypes.symbol) {
+            throw new RuntimeException(STR."lookAhead for \{jt.KeyWord()} not supported.");
+        }
+        switch (jt.symbol()) {
+            // array index
+            case '[' -> {
+                jt.advance();
+                int node = ast.add(Ast.Node.INDEX, identifier);
+                ast.append(node, parseExpression());
+                jt.advance();
+                return node;
+            }
+            // method call on this: name = subroutine, no receiver
+            case '(' -> {
+                jt.advance();
+                int node = ast.add(Ast.Node.CALL, 0, identifier, null);
+                parseExpressionList(node);
+                return node;
+            }
+            // receiver.subroutine: the receiver is kept in the type slot
+            case '.' -> {
+                jt.advance();
+                String subroutine = fetchAndAdvance(JackTokenizer.tokenTypes.identifier);
+                jt.advance();
+                int node = ast.add(Ast.Node.CALL, 0, subroutine, identifier);
+                parseExpressionList(node);
+                return node;
+            }
+            default -> {
+                return ast.add(Ast.Node.VAR, identifier);
+            }
+        }
+    }
+
+    private void parseExpressionList(int call) {
+        while (!isSymbol(')')) {
+            if (isSymbol(',')) {
+                jt.advance();
+                continue;
+            }
+            ast.append(call, parseExpression());
+        }
+        // )
+        jt.advance();
+    }
+}
@@ -0,0 +1,86 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+public class BuildCache {
+    // Bump whenever the compiler starts generating different code for the same source, or the file changes format.
+    public static final String VERSION = "6";
+    public static final String FILE_NAME = ".jackcache";
+
+    private final Path file;
+    private final String header;
+    private final Options options;
+    // Content hash of each class last compiled, by file name.
+    private final Map<String, String> entries = new TreeMap<>();
+    // Content hashes computed by outdated(), reused when the entry is written back.
+    private final Map<Path, String> hashes = new HashMap<>();
+
+    private BuildCache(Path dir, Options options) {
+        file = dir.resolve(FILE_NAME);
+        header = STR."jackcache \{VERSION} \{options.outputKey()}";
+        this.options = options;
+    }
+
+    // Reads the cache of dir. A cache written by another compiler version or with other output options is ignored.
+    public static BuildCache load(Path dir, Options options) throws IOException {
+        BuildCache cache = new BuildCache(dir, options);
+        if (!Files.exists(cache.file)) return cache;
+        List<String> lines = Files.readAllLines(cache.file);
+        if (lines.isEmpty() || !lines.get(0).equals(cache.header)) return cache;
+        for (String line : lines.subList(1, lines.size())) {
+            // file, hash
+            String[] fields = line.split("\t", -1);
+            cache.entries.put(fields[0], fields[1]);
+        }
+        return cache;
+    }
+
+    public void save() throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add(header);
+        entries.forEach((name, hash) -> lines.add(STR."\{name}\t\{hash}"));
+        Files.write(file, lines);
+    }
+
+    private static String hash(Path path) throws IOException {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(path)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Sources whose content changed since they were last compiled, or whose output is missing.
+    public List<Path> outdated(List<Path> sources) throws IOException {
+        List<Path> result = new ArrayList<>();
+        for (Path p : sources) {
+            String hash = hash(p);
+            hashes.put(p, hash);
+            if (!hash.equals(entries.get(p.getFileName().toString())) || !Files.exists(options.output(p))) result.add(p);
+        }
+        return result;
+    }
+
+    // Records the classes just compiled, and forgets the failed ones so they are retried next time, as well as
+    // the ones whose source is gone.
+    public void update(List<Path> compiled, Set<Path> failed, List<Path> sources) {
+        Set<String> names = new HashSet<>();
+        for (Path p : sources) names.add(p.getFileName().toString());
+        entries.keySet().retainAll(names);
+        for (Path p : compiled) {
+            String name = p.getFileName().toString();
+            if (failed.contains(p)) entries.remove(name);
+            else entries.put(name, hashes.get(p));
+        }
+    }
+}
@@ -0,0 +1,472 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.NoSuchElementException;
+
+public class CodeGenerator {
+    private final Ast ast;
+    private final VMWriter vmw;
+    private final SymbolTable classTable;
+    private final Options options;
+    private SymbolTable subTable;
+
+    // String literals of this class mapped to the hidden static holding them, in order of first use.
+    private final HashMap<String, Integer> stringPool = new HashMap<>();
+
+    private String className;
+    private String subroutineName;
+    private int branchCount;
+
+    // Multiplications needing more doublings and additions than this stay calls to Math.multiply.
+    private static final int maxMultiplySteps = 8;
+
+    public CodeGenerator(Ast tree, Writer output, Options options) {
+        this(tree, new VMWriter(output), options);
+    }
+
+    public CodeGenerator(Ast tree, VMWriter output, Options options) {
+        ast = tree;
+        vmw = output;
+        classTable = new SymbolTable();
+        this.options = options;
+    }
+
+    public void generateClass(int node) throws IOException {
+        className = ast.name(node);
+        for (int c = ast.first(node); c != Ast.NONE; c = ast.next(c)) {
+            if (ast.kind(c) == Ast.Node.CLASS_VAR) {
+                classTable.define(SymbolTable.Kind.values()[ast.value(c)], ast.type(c), ast.name(c));
+            }
+        }
+        for (int c = ast.first(node); c != Ast.NONE; c = ast.next(c)) {
+            if (ast.kind(c) == Ast.Node.SUBROUTINE) generateSubroutine(c);
+        }
+        vmw.close();
+    }
+
+    private void generateSubroutine(int node) throws IOException {
+        subTable = new SymbolTable(classTable);
+        subroutineName = ast.name(node);
+        branchCount = 0;
+        int kind = ast.value(node);
+        if (kind == Ast.METHOD) {
+            subTable.define(SymbolTable.Kind.ARG, className, "this");
+        }
+        int body = Ast.NONE;
+        for (int c = ast.first(node); c != Ast.NONE; c = ast.next(c)) {
+            switch (ast.kind(c)) {
+                case PARAMETER -> subTable.define(SymbolTable.Kind.ARG, ast.type(c), ast.name(c));
+                case LOCAL -> subTable.define(SymbolTable.Kind.VAR, ast.type(c), ast.name(c));
+                default -> body = c;
+            }
+        }
+        vmw.writeFunction(STR."\{className}.\{subroutineName}", subTable.varCount(SymbolTable.Kind.VAR));
+
+        if (kind == Ast.METHOD) {
+            vmw.writePush(VMWriter.Segment.ARGUMENT, 0);
+            vmw.writePop(VMWriter.Segment.POINTER, 0);
+        } else if (kind == Ast.CONSTRUCTOR) {
+            vmw.writePush(VMWriter.Segment.CONSTANT, classTable.varCount(SymbolTable.Kind.FIELD));
+            vmw.writeCall("Memory.alloc", 1);
+            vmw.writePop(VMWriter.Segment.POINTER, 0);
+        }
+        generateStatements(body);
+    }
+
+    private void generateStatements(int block) throws IOException {
+        for (int s = ast.first(block); s != Ast.NONE; s = ast.next(s)) {
+            switch (ast.kind(s)) {
+                case LET -> generateLet(s);
+                case IF -> generateIf(s);
+                case WHILE -> generateWhile(s);
+                case DO -> generateDo(s);
+                case RETURN -> generateReturn(s);
+                default -> throw new IllegalStateException(STR."\{ast.kind(s)} is not a statement.");
+            }
+        }
+    }
+
+    private void pushVar(String varName) throws IOException {
+        SymbolTable.Binding binding = subTable.resolve(varName);
+        if (binding == null) throw new NoSuchElementException(STR."Tries to push a var that's not defined: \{varName}.");
+        vmw.writePush(binding.segment(), binding.index());
+    }
+
+    private void pointThat(String varName) throws IOException {
+        SymbolTable.Binding binding = subTable.resolve(varName);
+        if (binding == null) throw new NoSuchElementException(STR."\{varName} is not defined.");
+        vmw.writePointThat(binding.segment(), binding.index());
+    }
+
+    // A constant index that that k can address directly.
+    private boolean isOffset(int node) {
+        return ast.isConstant(node) && ast.constantValue(node) >= 0;
+    }
+
+    // Whether evaluating node may call a subroutine, which is not trusted to leave pointer 1 alone.
+    private boolean mayCall(int node) {
+        switch (ast.kind(node)) {
+            case CALL, STRING -> { return true; }
+            case BINARY -> {
+                if (ast.value(node) == '*' || ast.value(node) == '/') return true;
+            }
+            default -> {}
+        }
+        for (int c = ast.first(node); c != Ast.NONE; c = ast.next(c)) {
+            if (mayCall(c)) return true;
+        }
+        return false;
+    }
+
+    // Whether evaluating node leaves pointer 1 as it was. With base, reading base[k] for a constant k is allowed,
+    // since it only points THAT at base, which is where it already points.
+    private boolean keepsThat(int node, String base) {
+        if (mayCall(node)) return false;
+        if (ast.kind(node) == Ast.Node.INDEX) {
+            return ast.name(node).equals(base) && isOffset(ast.first(node));
+        }
+        for (int c = ast.first(node); c != Ast.NONE; c = ast.next(c)) {
+            if (!keepsThat(c, base)) return false;
+        }
+        return true;
+    }
+
+    // let varName[index] = value, without going through temp 0 when pointer 1 can be set before value is evaluated.
+    // Returns false if only the general sequence will do.
+    private boolean generateArrayStore(String varName, int index, int value) throws IOException {
+        if (isOffset(index) && keepsThat(value, varName)) {
+            pointThat(varName);
+            generateExpression(value);
+            vmw.writePop(VMWriter.Segment.THAT, ast.constantValue(index));
+            return true;
+        }
+        if (!isOffset(index) && keepsThat(value, null)) {
+            pushVar(varName);
+            generateExpression(index);
+            vmw.writeArithmetic('+');
+            vmw.writePop(VMWriter.Segment.POINTER, 1);
+            generateExpression(value);
+            vmw.writePop(VMWriter.Segment.THAT, 0);
+            return true;
+        }
+        // A local or argument cannot be changed by the calls in value, so it can be read after them.
+        SymbolTable.Binding binding = subTable.resolve(varName);
+        SymbolTable.Kind kind = binding == null ? SymbolTable.Kind.NONE : binding.kind();
+        if (isOffset(index) && (kind == SymbolTable.Kind.VAR || kind == SymbolTable.Kind.ARG)) {
+            generateExpression(value);
+            pointThat(varName);
+            vmw.writePop(VMWriter.Segment.THAT, ast.constantValue(index));
+            return true;
+        }
+        return false;
+    }
+
+    private void generateLet(int node) throws IOException {
+        String varName = ast.name(node);
+        if (ast.value(node) == 1 && options.arrays && generateArrayStore(varName, ast.child(node, 0), ast.child(node, 1))) return;
+        if (ast.value(node) == 1) {
+            pushVar(varName);
+            generateExpression(ast.child(node, 0));
+            vmw.writeArithmetic('+');
+            generateExpression(ast.child(node, 1));
+            vmw.writePop(VMWriter.Segment.TEMP, 0);
+            vmw.writePop(VMWriter.Segment.POINTER, 1);
+            vmw.writePush(VMWriter.Segment.TEMP, 0);
+            vmw.writePop(VMWriter.Segment.THAT, 0);
+        }
+        else {
+            generateExpression(ast.first(node));
+            SymbolTable.Binding binding = subTable.resolve(varName);
+            if (binding == null) {
+                throw new RuntimeException(STR."\{varName} is undefined.");
+            }
+            vmw.writePop(binding.segment(), binding.index());
+        }
+    }
+
+    // Whether node always evaluates to true (-1) or false (0), so that if-goto alone can test it.
+    private boolean isBoolean(int node) {
+        return switch (ast.kind(node)) {
+            case TRUE, FALSE -> true;
+            case INT -> ast.constantValue(node) == 0 || ast.constantValue(node) == -1;
+            case UNARY -> ast.value(node) == '~' && isBoolean(ast.first(node));
+            case BINARY -> switch ((char) ast.value(node)) {
+                case '<', '>', '=' -> true;
+                case '&', '|' -> isBoolean(ast.child(node, 0)) && isBoolean(ast.child(node, 1));
+                default -> false;
+            };
+            default -> false;
+        };
+    }
+
+    // Whether jumping when node is false costs nothing over jumping when it is true:
+    // the not of ~x cancels out, and eq followed by not becomes a sub.
+    private boolean negatesFreely(int node) {
+        return ast.kind(node) == Ast.Node.UNARY && ast.value(node) == '~'
+                || ast.kind(node) == Ast.Node.BINARY && ast.value(node) == '=';
+    }
+
+    private void generateIf(int node) throws IOException {
+        int currentCount = branchCount++;
+        int cond = ast.child(node, 0);
+        // An empty ELSE branch is the same as none.
+        int elseBlock = ast.child(node, 2);
+        if (elseBlock != Ast.NONE && ast.first(elseBlock) == Ast.NONE) elseBlock = Ast.NONE;
+        if (options.branches && elseBlock != Ast.NONE && isBoolean(cond) && !negatesFreely(cond)) {
+            // Jump to THEN when the condition holds and fall through to ELSE, which saves the not. Without
+            // an ELSE branch the goto past THEN would cost what the not saves, so that case is left as it is.
+            String label = STR."\{className}.\{subroutineName}$br\{currentCount}";
+            generateExpression(cond);
+            vmw.writeIf(STR."\{label}IF-THEN");
+            generateStatements(elseBlock);
+            vmw.writeGoto(STR."\{label}IF-OUT");
+            vmw.writeLabel(STR."\{label}IF-THEN");
+            generateStatements(ast.child(node, 1));
+            vmw.writeLabel(STR."\{label}IF-OUT");
+            return;
+        }
+        generateExpression(cond);
+        vmw.writeArithmetic('~');
+        // If condition is not true, skip to ELSE branch
+        vmw.writeIf(STR."\{className}.\{subroutineName}$br\{currentCount}IF-ELSE");
+        generateStatements(ast.child(node, 1));
+        // Without an ELSE branch, the THEN branch falls through to IF-ELSE.
+        if (elseBlock != Ast.NONE) {
+            vmw.writeGoto(STR."\{className}.\{subroutineName}$br\{currentCount}IF-OUT");
+        }
+        vmw.writeLabel(STR."\{className}.\{subroutineName}$br\{currentCount}IF-ELSE");
+        if (elseBlock != Ast.NONE) {
+            generateStatements(elseBlock);
+            vmw.writeLabel(STR."\{className}.\{subroutineName}$br\{currentCount}IF-OUT");
+        }
+    }
+
+    // A comparison, possibly negated; CompilationEngine can recognise these from the commands it wrote.
+    private boolean isComparison(int node) {
+        while (ast.kind(node) == Ast.Node.UNARY && ast.value(node) == '~') node = ast.first(node);
+        return ast.kind(node) == Ast.Node.BINARY && switch ((char) ast.value(node)) {
+            case '<', '>', '=' -> true;
+            default -> false;
+        };
+    }
+
+    private void generateWhile(int node) throws IOException {
+        int currentCount = branchCount++;
+        int cond = ast.child(node, 0);
+        if (options.deadCode && ast.isConstant(cond) && ast.constantValue(cond) == -1) {
+            // while (true) needs no test; the loop is left with return.
+            vmw.writeLabel(STR."\{className}.\{subroutineName}$br\{currentCount}WHILE-EXP");
+            generateStatements(ast.child(node, 1));
+            vmw.writeGoto(STR."\{className}.\{subroutineName}$br\{currentCount}WHILE-EXP");
+            return;
+        }
+        if (isComparison(cond) || options.branches && isBoolean(cond)) {
+            // Rotated loop: the test sits after the body and jumps back while it holds,
+            // so an iteration costs one if-goto instead of a not, an if-goto and a goto.
+            vmw.writeGoto(STR."\{className}.\{subroutineName}$br\{currentCount}WHILE-EXP");
+            vmw.writeLabel(STR."\{className}.\{subroutineName}$br\{currentCount}WHILE-BODY");
+            generateStatements(ast.child(node, 1));
+            vmw.writeLabel(STR."\{className}.\{subroutineName}$br\{currentCount}WHILE-EXP");
+            generateExpression(cond);
+            vmw.writeIf(STR."\{className}.\{subroutineName}$br\{currentCount}WHILE-BODY");
+            return;
+        }
+        // Any other value counts as false, which only not; if-goto tests correctly.
+        vmw.writeLabel(STR."\{className}.\{subroutineName}$br\{currentCount}WHILE-EXP");
+        generateExpression(cond);
+        vmw.writeArithmetic('~');
+        vmw.writeIf(STR."\{className}.\{subroutineName}$br\{currentCount}WHILE-OUT");
+        generateStatements(ast.child(node, 1));
+        vmw.writeGoto(STR."\{className}.\{subroutineName}$br\{currentCount}WHILE-EXP");
+        vmw.writeLabel(STR."\{className}.\{subroutineName}$br\{currentCount}WHILE-OUT");
+    }
+
+    private void generateDo(int node) throws IOException {
+        generateExpression(ast.first(node));
+        vmw.writePop(VMWriter.Segment.TEMP, 0);
+    }
+
+    private void generateReturn(int node) throws IOException {
+        if (ast.first(node) != Ast.NONE) {
+            generateExpression(ast.first(node));
+        }
+        else vmw.writePush(VMWriter.Segment.CONSTANT, 0);
+        vmw.writeReturn();
+    }
+
+    public void generateExpression(int node) throws IOException {
+        switch (ast.kind(node)) {
+            case INT -> {
+                int value = ast.value(node);
+                // Folded constants may be negative, and ~value always fits in push constant.
+                if (value < 0) {
+                    vmw.writePush(VMWriter.Segment.CONSTANT, ~value);
+                    vmw.writeArithmetic('~');
+                }
+                else vmw.writePush(VMWriter.Segment.CONSTANT, value);
+            }
+            case STRING -> {
+                if (options.poolStrings) generatePooledString(ast.name(node));
+                else generateString(ast.name(node));
+            }
+            case TRUE -> {
+                vmw.writePush(VMWriter.Segment.CONSTANT, 1);
+                vmw.writeArithmetic('-');
+            }
+            case FALSE, NULL -> vmw.writePush(VMWriter.Segment.CONSTANT, 0);
+            case THIS -> vmw.writePush(VMWriter.Segment.POINTER, 0);
+            case VAR -> pushVar(ast.name(node));
+            case INDEX -> {
+                if (options.arrays && isOffset(ast.first(node))) {
+                    pointThat(ast.name(node));
+                    vmw.writePush(VMWriter.Segment.THAT, ast.constantValue(ast.first(node)));
+                    return;
+                }
+                pushVar(ast.name(node));
+                generateExpression(ast.first(node));
+                vmw.writeArithmetic('+');
+                vmw.writePop(VMWriter.Segment.POINTER, 1);
+                vmw.writePush(VMWriter.Segment.THAT, 0);
+            }
+            case UNARY -> {
+                generateExpression(ast.first(node));
+                vmw.writeArithmetic((char) ast.value(node));
+            }
+            case BINARY -> {
+                if (options.strength && reduceStrength(node)) return;
+                generateExpression(ast.child(node, 0));
+                generateExpression(ast.child(node, 1));
+                char op = (char) ast.value(node);
+                if (op == '-') {
+                    // A - B == A + (-B)
+                    vmw.writeArithmetic('-');
+                    vmw.writeArithmetic('+');
+                }
+                else vmw.writeArithmetic(op);
+            }
+            case CALL -> generateCall(node);
+            default -> throw new IllegalStateException(STR."\{ast.kind(node)} is not an expression.");
+        }
+    }
+
+    // Operands that can be pushed again instead of being evaluated once and saved.
+    private boolean isDirect(int node) {
+        return switch (ast.kind(node)) {
+            case INT, TRUE, FALSE, NULL, THIS, VAR -> true;
+            default -> false;
+        };
+    }
+
+    // Replaces a multiplication or division by a constant with inline VM code.
+    // Returns false if node is left for the regular Math.multiply/Math.divide call.
+    private boolean reduceStrength(int node) throws IOException {
+        char op = (char) ast.value(node);
+        int left = ast.child(node, 0);
+        int right = ast.child(node, 1);
+        if (op == '/') {
+            // x / 1 == x, x / -1 == -x. Other divisors, powers of two included, would need a right shift,
+            // which the VM lacks, so they still go through Math.divide.
+            if (!ast.isConstant(right) || Math.abs(ast.constantValue(right)) != 1) return false;
+            generateExpression(left);
+            if (ast.constantValue(right) == -1) vmw.writeArithmetic('-');
+            return true;
+        }
+        if (op != '*') return false;
+        int operand = left;
+        int factor = right;
+        if (!ast.isConstant(factor)) {
+            operand = right;
+            factor = left;
+        }
+        if (!ast.isConstant(factor)) return false;
+        int c = ast.constantValue(factor);
+        int m = Math.abs(c);
+        if (m == 0 || m == 32768) return false;
+        int k = 31 - Integer.numberOfLeadingZeros(m);
+        if (k + Integer.bitCount(m) - 1 > maxMultiplySteps) return false;
+
+        // Shift-and-add from the most significant bit: x * 10 == ((x + x) + (x + x) + (x + x) + x) ...
+        // computed as acc = x; acc = 2 * acc (+ x) for each lower bit. temp 1 holds acc while it is doubled,
+        // temp 2 holds x when it is needed more than once and cannot simply be pushed again.
+        boolean spill = Integer.bitCount(m) > 1 && !isDirect(operand);
+        if (spill) {
+            generateExpression(operand);
+            vmw.writePop(VMWriter.Segment.TEMP, 2);
+        }
+        pushOperand(operand, spill);
+        for (int bit = k - 1; bit >= 0; bit--) {
+            if (bit == k - 1 && (spill || isDirect(operand))) {
+                // acc is still x, so x + x avoids going through temp 1.
+                pushOperand(operand, spill);
+            } else {
+                vmw.writePop(VMWriter.Segment.TEMP, 1);
+                vmw.writePush(VMWriter.Segment.TEMP, 1);
+                vmw.writePush(VMWriter.Segment.TEMP, 1);
+            }
+            vmw.writeArithmetic('+');
+            if ((m >> bit & 1) == 1) {
+                pushOperand(operand, spill);
+                vmw.writeArithmetic('+');
+            }
+        }
+        if (c < 0) vmw.writeArithmetic('-');
+        return true;
+    }
+
+    private void pushOperand(int operand, boolean spill) throws IOException {
+        if (spill) vmw.writePush(VMWriter.Segment.TEMP, 2);
+        else generateExpression(operand);
+    }
+
+    private void generateString(String s) throws IOException {
+        vmw.writePush(VMWriter.Segment.CONSTANT, s.length());
+        vmw.writeCall("String.new", 1);
+        for (char c : s.toCharArray()) {
+            vmw.writePush(VMWriter.Segment.CONSTANT, c);
+            vmw.writeCall("String.appendChar", 2);
+        }
+    }
+
+    // Each distinct literal gets a static slot after the declared statics. The string is built the first
+    // time the expression runs, while the slot is still 0, and the same object is pushed from then on.
+    private void generatePooledString(String s) throws IOException {
+        Integer slot = stringPool.get(s);
+        if (slot == null) {
+            slot = classTable.varCount(SymbolTable.Kind.STATIC) + stringPool.size();
+            stringPool.put(s, slot);
+        }
+        String ready = STR."\{className}.\{subroutineName}$br\{branchCount++}STR-READY";
+        vmw.writePush(VMWriter.Segment.STATIC, slot);
+        vmw.writeIf(ready);
+        generateString(s);
+        vmw.writePop(VMWriter.Segment.STATIC, slot);
+        vmw.writeLabel(ready);
+        vmw.writePush(VMWriter.Segment.STATIC, slot);
+    }
+
+    private void generateCall(int node) throws IOException {
+        String receiver = ast.type(node);
+        String subroutine = ast.name(node);
+        SymbolTable.Binding object = receiver == null ? null : subTable.resolve(receiver);
+        // method calls
+        if (receiver == null) {
+            vmw.writePush(VMWriter.Segment.POINTER, 0);
+            vmw.writeCall(STR."\{className}.\{subroutine}", generateExpressionList(node) + 1);
+        }
+        // receiver is an object, calling a method
+        else if (object != null) {
+            vmw.writePush(object.segment(), object.index());
+            vmw.writeCall(STR."\{object.type()}.\{subroutine}", generateExpressionList(node) + 1);
+        } // receiver is a class, calling a function
+        else vmw.writeCall(STR."\{receiver}.\{subroutine}", generateExpressionList(node));
+    }
+
+    private int generateExpressionList(int call) throws IOException {
+        int counter = 0;
+        for (int c = ast.first(call); c != Ast.NONE; c = ast.next(c)) {
+            generateExpression(c);
+            counter++;
+        }
+        return counter;
+    }
+}
@@ -1,5 +1,5 @@
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.*;
 
 public class CompilationEngine {
@@ -19,9 +19,13 @@ public class CompilationEngine {
         ops.addAll(Arrays.asList(op));
     }
 
-    public CompilationEngine(JackTokenizer input, FileWriter output) {
+    public CompilationEngine(JackTokenizer input, Writer output) {
+        this(input, new VMWriter(output));
+    }
+
+    public CompilationEngine(JackTokenizer input, VMWriter output) {
         jt = input;
-        vmw = new VMWriter(output);
+        vmw = output;
         classTable = new SymbolTable();
     }
 
@@ -107,7 +111,7 @@ public class CompilationEngine {
     }
 
     public void compileSubroutine() throws IOException {
-        subTable = new SymbolTable();
+        subTable = new SymbolTable(classTable);
         // keyword, type/identifier, identifier, open parenthesis
         subroutineKind = fetchAndAdvance(JackTokenizer.tokenTypes.keyword);
         if (subroutineKind.equals("method")) {
@@ -153,12 +157,12 @@ public class CompilationEngine {
         vmw.writeFunction(STR."\{className}.\{subroutineName}", subTable.varCount(SymbolTable.Kind.VAR));
 
         if (subroutineKind.equals("method")) {
-            vmw.writePush("arg", 0);
-            vmw.writePop("pointer", 0);
+            vmw.writePush(VMWriter.Segment.ARGUMENT, 0);
+            vmw.writePop(VMWriter.Segment.POINTER, 0);
         } else if (subroutineKind.equals("constructor")) {
-            vmw.writePush("int", classTable.varCount(SymbolTable.Kind.FIELD));
+            vmw.writePush(VMWriter.Segment.CONSTANT, classTable.varCount(SymbolTable.Kind.FIELD));
             vmw.writeCall("Memory.alloc", 1);
-            vmw.writePop("pointer", 0);
+            vmw.writePop(VMWriter.Segment.POINTER, 0);
         }
         compileStatements();
 
@@ -199,22 +203,10 @@ public class CompilationEngine {
         }
     }
 
-    private void popVar(String varName) throws IOException {
-        if (subTable.kindOf(varName) != SymbolTable.Kind.NONE) {
-            vmw.writePop(subTable.kindOf(varName).name(), subTable.indexOf(varName));
-        } else if (classTable.kindOf(varName) != SymbolTable.Kind.NONE) {
-            vmw.writePop(classTable.kindOf(varName).name(), classTable.indexOf(varName));
-        }
-        else throw new NoSuchElementException(STR."Tries to pop a var that's not defined: \{varName}.");
-    }
-
     private void pushVar(String varName) throws IOException {
-        if (subTable.kindOf(varName) != SymbolTable.Kind.NONE) {
-            vmw.writePush(subTable.kindOf(varName).name(), subTable.indexOf(varName));
-        } else if (classTable.kindOf(varName) != SymbolTable.Kind.NONE) {
-            vmw.writePush(classTable.kindOf(varName).name(), classTable.indexOf(varName));
-        }
-        else throw new NoSuchElementException(STR."Tries to push a var that's not defined: \{varName}.");
+        SymbolTable.Binding binding = subTable.resolve(varName);
+        if (binding == null) throw new NoSuchElementException(STR."Tries to push a var that's not defined: \{varName}.");
+        vmw.writePush(binding.segment(), binding.index());
     }
 
     public void compileLet() throws IOException {
@@ -234,21 +226,21 @@ public class CompilationEngine {
             vmw.writeArithmetic('+');
             jt.advance();
             compileExpression();
-            vmw.writePop("temp", 0);
-            vmw.writePop("pointer", 1);
-            vmw.writePush("temp", 0);
-            vmw.writePop("that", 0);
+            vmw.writePop(VMWriter.Segment.TEMP, 0);
+            vmw.writePop(VMWriter.Segment.POINTER, 1);
+            vmw.writePush(VMWriter.Segment.TEMP, 0);
+            vmw.writePop(VMWriter.Segment.THAT, 0);
         }
         else {
             // =
             jt.advance();
             compileExpression();
 
-            if (isDefined(varName)) {
-                popVar(varName);
-            } else {
+            SymbolTable.Binding binding = subTable.resolve(varName);
+            if (binding == null) {
                 throw new RuntimeException(STR."\{varName} is undefined.");
             }
+            vmw.writePop(binding.segment(), binding.index());
         }
 
         // ;
@@ -269,22 +261,39 @@ public class CompilationEngine {
         jt.advance();
         // THEN branch
         compileStatements();
-        // Skip ELSE branch
-        vmw.writeGoto(STR."\{className}.\{subroutineName}$br\{currentCount}IF-OUT");
-        // Label for branch 0
-        vmw.writeLabel(STR."\{className}.\{subroutineName}$br\{currentCount}IF-ELSE");
         // compileStatements terminate at }
         jt.advance();
-        // branch 1
         if (isKeyword("else")) {
-            // else {
+            // branch 1: else {
             jt.advance();
             jt.advance();
-            compileStatements();
-            // }
-            jt.advance();
+            // An empty ELSE branch is the same as none.
+            if (isSymbol('}')) jt.advance();
+            else {
+                // Skip ELSE branch
+                vmw.writeGoto(STR."\{className}.\{subroutineName}$br\{currentCount}IF-OUT");
+                // Label for branch 0
+                vmw.writeLabel(STR."\{className}.\{subroutineName}$br\{currentCount}IF-ELSE");
+                compileStatements();
+                // }
+                jt.advance();
+                vmw.writeLabel(STR."\{className}.\{subroutineName}$br\{currentCount}IF-OUT");
+                return;
+            }
         }
-        vmw.writeLabel(STR."\{className}.\{subroutineName}$br\{currentCount}IF-OUT");
+        // Without an ELSE branch, the THEN branch falls through to IF-ELSE.
+        vmw.writeLabel(STR."\{className}.\{subroutineName}$br\{currentCount}IF-ELSE");
+    }
+
+    // Whether a condition that compiled to these commands is always true (-1) or false (0):
+    // a comparison, possibly negated.
+    private static boolean isComparison(List<VMWriter.Command> commands) {
+        int i = commands.size() - 1;
+        while (i >= 0 && commands.get(i).is(VMWriter.Arithmetic.NOT)) i--;
+        return i >= 0 && commands.get(i).op() == VMWriter.Op.ARITHMETIC && switch (commands.get(i).arithmetic()) {
+            case EQ, GT, LT -> true;
+            default -> false;
+        };
     }
 
     public void compileWhile() throws IOException {
@@ -292,13 +301,31 @@ public class CompilationEngine {
         // while (
         jt.advance();
         jt.advance();
-        vmw.writeLabel(STR."\{className}.\{subroutineName}$br\{currentCount}WHILE-EXP");
+        // The condition is placed after the body, so it is compiled on the side.
+        vmw.startCapture();
         compileExpression();
-        vmw.writeArithmetic('~');
-        vmw.writeIf(STR."\{className}.\{subroutineName}$br\{currentCount}WHILE-OUT");
+        List<VMWriter.Command> condition = vmw.endCapture();
         // ) {
         jt.advance();
         jt.advance();
+        if (isComparison(condition)) {
+            // Rotated loop: the test sits after the body and jumps back while it holds,
+            // so an iteration costs one if-goto instead of a not, an if-goto and a goto.
+            vmw.writeGoto(STR."\{className}.\{subroutineName}$br\{currentCount}WHILE-EXP");
+            vmw.writeLabel(STR."\{className}.\{subroutineName}$br\{currentCount}WHILE-BODY");
+            compileStatements();
+            vmw.writeLabel(STR."\{className}.\{subroutineName}$br\{currentCount}WHILE-EXP");
+            vmw.replay(condition);
+            vmw.writeIf(STR."\{className}.\{subroutineName}$br\{currentCount}WHILE-BODY");
+            // compileStatements terminate at }
+            jt.advance();
+            return;
+        }
+        // Any other value counts as false, which only not; if-goto tests correctly.
+        vmw.writeLabel(STR."\{className}.\{subroutineName}$br\{currentCount}WHILE-EXP");
+        vmw.replay(condition);
+        vmw.writeArithmetic('~');
+        vmw.writeIf(STR."\{className}.\{subroutineName}$br\{currentCount}WHILE-OUT");
         compileStatements();
         vmw.writeGoto(STR."\{className}.\{subroutineName}$br\{currentCount}WHILE-EXP");
         // compileStatements terminate at }
@@ -313,7 +340,7 @@ public class CompilationEngine {
         lookAhead();
         // ;
         jt.advance();
-        vmw.writePop("temp", 0);
+        vmw.writePop(VMWriter.Segment.TEMP, 0);
     }
 
     public void compileReturn() throws IOException {
@@ -323,7 +350,7 @@ public class CompilationEngine {
         if (!isSymbol(';')) {
             compileExpression();
         }
-        else vmw.writePush("int", 0);
+        else vmw.writePush(VMWriter.Segment.CONSTANT, 0);
         vmw.writeReturn();
         // ;
         jt.advance();
@@ -340,10 +367,10 @@ public class CompilationEngine {
         while (nextIsOp()) {
             char op = fetchAndAdvance(JackTokenizer.tokenTypes.symbol).charAt(0);
             if (isSymbol('=')) {
-                // >= or <=
+                // a <= b is ~(a > b) and a >= b is ~(a < b); the comparison is popped first.
+                stack.push('~');
                 if (op == '<') stack.push('>');
                 else if (op == '>') stack.push('<');
-                stack.push('~');
                 jt.advance();
             } else stack.push(op);
             compileTerm();
@@ -362,14 +389,14 @@ public class CompilationEngine {
     public void compileTerm() throws IOException {
         switch (jt.tokenType()) {
             case integerConstant -> {
-                vmw.writePush("int", jt.intVal());
+                vmw.writePush(VMWriter.Segment.CONSTANT, jt.intVal());
                 jt.advance();
             }
             case stringConstant -> {
-                vmw.writePush("int", jt.stringVal().length());
+                vmw.writePush(VMWriter.Segment.CONSTANT, jt.stringVal().length());
                 vmw.writeCall("String.new", 1);
                 for (char c : jt.stringVal().toCharArray()) {
-                    vmw.writePush("int", c);
+                    vmw.writePush(VMWriter.Segment.CONSTANT, c);
                     vmw.writeCall("String.appendChar", 2);
                 }
                 jt.advance();
@@ -377,16 +404,16 @@ public class CompilationEngine {
             case keyword -> {
                 switch (jt.KeyWord()) {
                     case "true" -> {
-                        vmw.writePush("int", 1);
+                        vmw.writePush(VMWriter.Segment.CONSTANT, 1);
                         vmw.writeArithmetic('-');
                         jt.advance();
                     }
                     case "null", "false" -> {
-                        vmw.writePush("int", 0);
+                        vmw.writePush(VMWriter.Segment.CONSTANT, 0);
                         jt.advance();
                     }
                     case "this" -> {
-                        vmw.writePush("pointer" , 0);
+                        vmw.writePush(VMWriter.Segment.POINTER, 0);
                         jt.advance();
                     }
                     default -> throw new UnsupportedOperationException(STR."write \{jt.KeyWord()} not implemented.");
@@ -410,16 +437,6 @@ public class CompilationEngine {
         }
     }
 
-    private boolean isDefined(String varName) {
-        return subTable.kindOf(varName) != SymbolTable.Kind.NONE || classTable.kindOf(varName) != SymbolTable.Kind.NONE;
-    }
-
-    private SymbolTable lookUp(String varName) {
-        if (subTable.kindOf(varName) != SymbolTable.Kind.NONE) return subTable;
-        else if (classTable.kindOf(varName) != SymbolTable.Kind.NONE) return classTable;
-        else throw new NoSuchElementException(STR."\{varName} is not defined.");
-    }
-
     private void lookAhead() throws IOException {
         String identifier = fetchAndAdvance(JackTokenizer.tokenTypes.identifier);
         if (jt.tokenType() != JackTokenizer.tokenTypes.symbol) {
@@ -432,14 +449,14 @@ public class CompilationEngine {
                 jt.advance();
                 compileExpression();
                 vmw.writeArithmetic('+');
-                vmw.writePop("pointer", 1);
-                vmw.writePush("that", 0);
+                vmw.writePop(VMWriter.Segment.POINTER, 1);
+                vmw.writePush(VMWriter.Segment.THAT, 0);
                 jt.advance();
             }
             // method calls
             case '(' -> {
                 jt.advance();
-                vmw.writePush("pointer", 0);
+                vmw.writePush(VMWriter.Segment.POINTER, 0);
                 vmw.writeCall(STR."\{className}.\{identifier}", compileExpressionList() + 1);
                 // )
                 jt.advance();
@@ -451,10 +468,10 @@ public class CompilationEngine {
                 String method = fetchAndAdvance(JackTokenizer.tokenTypes.identifier);
                 jt.advance();
                 // identifier is an object, calling a method
-                if (isDefined(identifier)) {
-                    SymbolTable table = lookUp(identifier);
-                    vmw.writePush(table.kindOf(identifier).name(), table.indexOf(identifier));
-                    vmw.writeCall(STR."\{table.typeOf(identifier)}.\{method}", compileExpressionList() + 1);
+                SymbolTable.Binding object = subTable.resolve(identifier);
+                if (object != null) {
+                    vmw.writePush(object.segment(), object.index());
+                    vmw.writeCall(STR."\{object.type()}.\{method}", compileExpressionList() + 1);
                 } // identifier is a class, calling a function
                 else vmw.writeCall(STR."\{identifier}.\{method}", compileExpressionList());
                 // )
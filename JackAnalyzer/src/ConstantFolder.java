@@ -0,0 +1,130 @@
+public class ConstantFolder {
+    private final Ast ast;
+
+    public ConstantFolder(Ast tree) {
+        ast = tree;
+    }
+
+    // Folds every expression below node. Returns the node that should take its place,
+    // which is the node itself unless an identity reduced it to one of its operands.
+    public int fold(int node) {
+        int c = ast.first(node);
+        while (c != Ast.NONE) {
+            int next = ast.next(c);
+            int folded = fold(c);
+            if (folded != c) ast.replace(node, c, folded);
+            c = next;
+        }
+        return switch (ast.kind(node)) {
+            case UNARY -> foldUnary(node);
+            case BINARY -> foldBinary(node);
+            default -> node;
+        };
+    }
+
+    private boolean isConstant(int node, int value) {
+        return ast.isConstant(node) && ast.constantValue(node) == value;
+    }
+
+    private int constant(int node, int value) {
+        ast.rewrite(node, Ast.Node.INT, (short) value);
+        return node;
+    }
+
+    private int foldUnary(int node) {
+        char op = (char) ast.value(node);
+        int operand = ast.first(node);
+        if (ast.isConstant(operand)) {
+            return constant(node, op == '-' ? -ast.constantValue(operand) : ~ast.constantValue(operand));
+        }
+        // -(-x) == x, ~(~x) == x
+        if (ast.kind(operand) == Ast.Node.UNARY && ast.value(operand) == op) {
+            return ast.first(operand);
+        }
+        return node;
+    }
+
+    private int foldBinary(int node) {
+        char op = (char) ast.value(node);
+        int left = ast.child(node, 0);
+        int right = ast.child(node, 1);
+        if (ast.isConstant(left) && ast.isConstant(right)) {
+            int a = ast.constantValue(left);
+            int b = ast.constantValue(right);
+            switch (op) {
+                case '+' -> { return constant(node, a + b); }
+                case '-' -> { return constant(node, a - b); }
+                case '*' -> { return constant(node, a * b); }
+                // Leave division by zero to Math.divide, which reports it at run time.
+                case '/' -> { if (b != 0) return constant(node, a / b); }
+                case '&' -> { return constant(node, a & b); }
+                case '|' -> { return constant(node, a | b); }
+                case '<' -> { return constant(node, a < b ? -1 : 0); }
+                case '>' -> { return constant(node, a > b ? -1 : 0); }
+                case '=' -> { return constant(node, a == b ? -1 : 0); }
+            }
+            return node;
+        }
+        switch (op) {
+            case '+' -> {
+                if (isConstant(right, 0)) return left;
+                if (isConstant(left, 0)) return right;
+            }
+            case '-' -> {
+                if (isConstant(right, 0)) return left;
+                if (isConstant(left, 0)) return negate(node, right);
+            }
+            case '*' -> {
+                if (isConstant(right, 1)) return left;
+                if (isConstant(left, 1)) return right;
+                if (isConstant(right, -1)) return negate(node, left);
+                if (isConstant(left, -1)) return negate(node, right);
+                if (isConstant(right, 0) && ast.isPure(left)) return constant(node, 0);
+                if (isConstant(left, 0) && ast.isPure(right)) return constant(node, 0);
+            }
+            case '/' -> {
+                if (isConstant(right, 1)) return left;
+                if (isConstant(right, -1)) return negate(node, left);
+            }
+            case '&' -> {
+                if (isNot(left) && isNot(right)) return deMorgan(node, '|', left, right);
+                if (isConstant(right, -1)) return left;
+                if (isConstant(left, -1)) return right;
+                if (isConstant(right, 0) && ast.isPure(left)) return constant(node, 0);
+                if (isConstant(left, 0) && ast.isPure(right)) return constant(node, 0);
+            }
+            case '|' -> {
+                if (isNot(left) && isNot(right)) return deMorgan(node, '&', left, right);
+                if (isConstant(right, 0)) return left;
+                if (isConstant(left, 0)) return right;
+                if (isConstant(right, -1) && ast.isPure(left)) return constant(node, -1);
+                if (isConstant(left, -1) && ast.isPure(right)) return constant(node, -1);
+            }
+        }
+        return node;
+    }
+
+    private boolean isNot(int node) {
+        return ast.kind(node) == Ast.Node.UNARY && ast.value(node) == '~';
+    }
+
+    // ~a & ~b == ~(a | b) and ~a | ~b == ~(a & b): one not instead of two, and a not that a condition
+    // can often absorb.
+    private int deMorgan(int node, char op, int left, int right) {
+        int a = ast.first(left);
+        int b = ast.first(right);
+        // node becomes the not, so it keeps its place among its siblings.
+        int inner = ast.add(Ast.Node.BINARY, op);
+        ast.append(inner, a);
+        ast.append(inner, b);
+        ast.rewrite(node, Ast.Node.UNARY, '~');
+        ast.append(node, inner);
+        return node;
+    }
+
+    private int negate(int node, int operand) {
+        ast.rewrite(node, Ast.Node.UNARY, '-');
+        ast.append(node, operand);
+        return foldUnary(node);
+    }
+}
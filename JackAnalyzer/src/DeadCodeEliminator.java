@@ -0,0 +1,95 @@
+import java.util.ArrayList;
+import java.util.List;
+
+public class DeadCodeEliminator {
+    private final Ast ast;
+    private final StringBuilder report = new StringBuilder();
+
+    // What was removed from the subroutine being processed.
+    private int unreachable;
+    private int constantBranches;
+    private int emptyBranches;
+
+    public DeadCodeEliminator(Ast tree) {
+        ast = tree;
+    }
+
+    public void eliminate(int classNode) {
+        for (int c = ast.first(classNode); c != Ast.NONE; c = ast.next(c)) {
+            if (ast.kind(c) != Ast.Node.SUBROUTINE) continue;
+            unreachable = 0;
+            constantBranches = 0;
+            emptyBranches = 0;
+            int body = Ast.NONE;
+            for (int d = ast.first(c); d != Ast.NONE; d = ast.next(d)) body = d;
+            eliminateBlock(body);
+            List<String> removed = new ArrayList<>();
+            if (unreachable > 0) removed.add(STR."\{unreachable} unreachable statement(s)");
+            if (constantBranches > 0) removed.add(STR."\{constantBranches} constant condition(s)");
+            if (emptyBranches > 0) removed.add(STR."\{emptyBranches} empty if statement(s)");
+            if (!removed.isEmpty()) {
+                report.append(STR."\{ast.name(classNode)}.\{ast.name(c)}: removed \{String.join(", ", removed)}\n");
+            }
+        }
+    }
+
+    // One line per subroutine that lost something, empty if nothing was removed.
+    public String report() {
+        return report.toString();
+    }
+
+    // Drops what cannot run from block. Returns whether control can fall off the end of it.
+    private boolean eliminateBlock(int block) {
+        List<Integer> kept = new ArrayList<>();
+        boolean reachable = true;
+        for (int s = ast.first(block); s != Ast.NONE; s = ast.next(s)) {
+            if (!reachable) {
+                unreachable++;
+                continue;
+            }
+            switch (ast.kind(s)) {
+                case IF -> {
+                    int cond = ast.child(s, 0);
+                    int thenBlock = ast.child(s, 1);
+                    int elseBlock = ast.child(s, 2);
+                    if (ast.isConstant(cond)) {
+                        // Only -1 counts as true; the statements of the branch taken replace the if.
+                        constantBranches++;
+                        int taken = ast.constantValue(cond) == -1 ? thenBlock : elseBlock;
+                        if (taken == Ast.NONE) continue;
+                        reachable = eliminateBlock(taken);
+                        for (int t = ast.first(taken); t != Ast.NONE; t = ast.next(t)) kept.add(t);
+                        continue;
+                    }
+                    boolean thenFalls = eliminateBlock(thenBlock);
+                    boolean elseFalls = elseBlock == Ast.NONE || eliminateBlock(elseBlock);
+                    reachable = thenFalls || elseFalls;
+                    if (ast.first(thenBlock) == Ast.NONE && (elseBlock == Ast.NONE || ast.first(elseBlock) == Ast.NONE) && ast.isPure(cond)) {
+                        emptyBranches++;
+                        continue;
+                    }
+                    kept.add(s);
+                }
+                case WHILE -> {
+                    int cond = ast.child(s, 0);
+                    if (ast.isConstant(cond) && ast.constantValue(cond) != -1) {
+                        constantBranches++;
+                        continue;
+                    }
+                    eliminateBlock(ast.child(s, 1));
+                    // There is no break, so only a return leaves while (true).
+                    if (ast.isConstant(cond)) reachable = false;
+                    kept.add(s);
+                }
+                case RETURN -> {
+                    reachable = false;
+                    kept.add(s);
+                }
+                default -> kept.add(s);
+            }
+        }
+        ast.removeChildren(block);
+        for (int s : kept) ast.append(block, s);
+        return reachable;
+    }
+}
@@ -1,39 +1,147 @@
-import java.io.FileWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
 
 public class JackAnalyzer {
     public static void main(String[] args) throws IOException {
-        if (args.length != 1) {
-            throw new IllegalArgumentException("Usage: java JackAnalyzer <filename/dirname>");
-        }
+        Options options = Options.parse(args);
 
-        Path path = Path.of(args[0]);
+        Path path = Path.of(options.path);
         if (!Files.isDirectory(path)) {
-            compile(path);
+            System.out.print(compile(path, options));
         }
         else {
             List<Path> worklist;
             try (Stream<Path> stream = Files.list(path)) {
-                worklist = stream.filter(p -> p.getFileName().toString().endsWith(".jack")).toList();
-                worklist.forEach(p -> {
-                    try {
-                        compile(p);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                });
+                worklist = stream.filter(p -> p.getFileName().toString().endsWith(".jack")).sorted().toList();
+            }
+            if (options.incremental) compileIncrementally(path, worklist, options);
+            else report(compileAll(worklist, options), worklist.size());
+        }
+    }
+
+    // Only classes whose source changed are compiled. The code of a class never depends on another class,
+    // which is only referred to by name, so a change to one class does not make any other out of date.
+    private static void compileIncrementally(Path dir, List<Path> sources, Options options) throws IOException {
+        BuildCache cache = BuildCache.load(dir, options);
+        List<Path> outdated = cache.outdated(sources);
+        Map<Path, Throwable> failures = compileAll(outdated, options);
+        cache.update(outdated, failures.keySet(), sources);
+        cache.save();
+        System.out.println(STR."Compiled \{outdated.size()} of \{sources.size()} classes, \{sources.size() - outdated.size()} up to date.");
+        report(failures, outdated.size());
+    }
+
+    private static void report(Map<Path, Throwable> failures, int total) {
+        if (!failures.isEmpty()) {
+            failures.forEach((p, e) -> System.err.println(STR."\{p.getFileName()}: \{e}"));
+            throw new RuntimeException(STR."\{failures.size()} of \{total} files failed to compile.");
+        }
+    }
+
+    // Classes are independent of each other, so they are compiled concurrently. A failing class does not
+    // stop the others; failures are collected per file, in file name order, once every class is done.
+    // The --verbose reports are printed in the same order.
+    private static Map<Path, Throwable> compileAll(List<Path> worklist, Options options) {
+        Map<Path, Throwable> failures = new LinkedHashMap<>();
+        if (worklist.isEmpty()) return failures;
+        int threads = Math.max(1, Math.min(options.jobs, worklist.size()));
+        try (ExecutorService pool = Executors.newFixedThreadPool(threads)) {
+            List<Future<String>> results = new ArrayList<>();
+            for (Path p : worklist) {
+                results.add(pool.submit(() -> compile(p, options)));
+            }
+            for (int i = 0; i < worklist.size(); i++) {
+                try {
+                    System.out.print(results.get(i).get());
+                } catch (ExecutionException e) {
+                    failures.put(worklist.get(i), e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
             }
         }
+        return failures;
     }
 
-    private static void compile(Path path) throws IOException {
-        JackTokenizer jt = new JackTokenizer(path);
-        FileWriter fw = new FileWriter(path.toString().replaceAll("(.*).jack", "$1.vm"));
-        CompilationEngine ce = new CompilationEngine(jt, fw);
-        ce.compileClass();
+    // Returns the --verbose report, for the caller to print.
+    private static String compile(Path path, Options options) throws IOException {
+        // The whole class is generated before the output is opened, so a class that fails half way
+        // leaves no partial file for VMTranslator to pick up.
+        if (options.binary) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            String report = compile(path, options, new VMWriter(out));
+            Files.write(options.output(path), out.toByteArray());
+            return report;
+        }
+        StringWriter out = new StringWriter();
+        String report = compile(path, options, new VMWriter(out));
+        Files.writeString(options.output(path), out.toString());
+        return report;
+    }
+
+    private static String compile(Path path, Options options, VMWriter output) throws IOException {
+        String report = "";
+        try (JackTokenizer jt = new JackTokenizer(path, options.pipelinedLexer)) {
+            if (options.ast) {
+                AstBuilder builder = new AstBuilder(jt);
+                int root = builder.parseClass();
+                if (options.fold) new ConstantFolder(builder.ast()).fold(root);
+                if (options.deadCode) {
+                    DeadCodeEliminator dce = new DeadCodeEliminator(builder.ast());
+                    dce.eliminate(root);
+                    if (options.verbose) report = dce.report();
+                }
+                CodeGenerator cg = new CodeGenerator(builder.ast(), output, options);
+                cg.generateClass(root);
+            }
+            else {
+                CompilationEngine ce = new CompilationEngine(jt, output);
+                ce.compileClass();
+            }
+        }
+        return report;
+    }
+
+    // Compiles one class without touching the disk and returns its VM commands.
+    // Used to run the whole toolchain in one JVM, so it only takes and returns JDK types.
+    public static List<String> compileToLines(Path path, String... flags) throws IOException {
+        String[] args = Arrays.copyOf(flags, flags.length + 1);
+        args[flags.length] = path.toString();
+        Options options = Options.parse(args);
+        // The commands are handed over as text.
+        options.binary = false;
+        StringWriter output = new StringWriter();
+        System.out.print(compile(path, options, new VMWriter(output)));
+        return output.toString().lines().toList();
+    }
+
+    // Only tokenizes one class and returns how many tokens it has.
+    // Used to time the tokenizer apart from the rest of the compiler, so it only takes JDK types.
+    public static int tokenize(Path path, String... flags) throws IOException {
+        String[] args = Arrays.copyOf(flags, flags.length + 1);
+        args[flags.length] = path.toString();
+        Options options = Options.parse(args);
+        int tokens = 0;
+        try (JackTokenizer jt = new JackTokenizer(path, options.pipelinedLexer)) {
+            while (jt.hasMoreTokens()) {
+                jt.advance();
+                tokens++;
+            }
+        }
+        return tokens;
     }
 }
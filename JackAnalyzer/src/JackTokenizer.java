@@ -2,9 +2,17 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.util.*;
 
-public class JackTokenizer {
+public class JackTokenizer implements AutoCloseable {
     private final Scanner reader;
     private final Queue<String> tokens = new ArrayDeque<>();
+    // In pipelined mode the lines are split and classified on another thread, which runs ahead of the parser
+    // by up to RING_CAPACITY tokens. Otherwise ring is null and tokens are read from the queue as before.
+    private static final int RING_CAPACITY = 1024;
+    private final TokenRing ring;
+    private TokenRing.Token current;
+    // Every occurrence of a name is the same String, so later symbol table lookups reuse the hash it cached.
+    // Only touched by whichever thread runs parseLine.
+    private final HashMap<String, String> names = new HashMap<>();
     private static final HashSet<String> validSymbol = new HashSet<>();
     private static final HashSet<String> validKeyword = new HashSet<>();
     public enum tokenTypes { keyword, symbol, identifier, integerConstant, stringConstant }
@@ -17,12 +25,52 @@ public class JackTokenizer {
     }
 
     public JackTokenizer(Path path) throws IOException {
+        this(path, false);
+    }
+
+    public JackTokenizer(Path path, boolean pipelined) throws IOException {
         reader = new Scanner(path);
-        parseLine();
+        if (!pipelined) {
+            ring = null;
+            parseLine();
+            return;
+        }
+        ring = new TokenRing(RING_CAPACITY);
+        Thread.ofVirtual().name(STR."tokenizer \{path.getFileName()}").start(this::produce);
+        current = ring.take();
+    }
+
+    // Runs on the tokenizer thread. The queue and the reader are only touched here in pipelined mode.
+    private void produce() {
+        try {
+            while (true) {
+                while (!tokens.isEmpty()) {
+                    String s = tokens.poll();
+                    if (!ring.put(new TokenRing.Token(classify(s), s))) return;
+                }
+                if (!reader.hasNextLine()) break;
+                parseLine();
+            }
+            ring.put(TokenRing.END);
+        } catch (Throwable e) {
+            ring.fail(e);
+        } finally {
+            reader.close();
+        }
     }
 
     public boolean hasMoreTokens() {
-        return !tokens.isEmpty();
+        return ring == null ? !tokens.isEmpty() : current != TokenRing.END;
+    }
+
+    private String peek() {
+        return ring == null ? tokens.peek() : current.text();
+    }
+
+    // Stops the tokenizer thread if the parser gives up before the end of the file.
+    public void close() {
+        if (ring != null) ring.close();
+        else reader.close();
     }
 
     private String fetchNextNonCommentLine() {
@@ -62,9 +110,9 @@ public class JackTokenizer {
                 // Include the closing double quote
                 right++;
             }
-            // Start with a char
-            else if (Character.isLetter(line.charAt(right))) {
-                while (right < line.length() - 1 && Character.isLetterOrDigit(line.charAt(right + 1))) {
+            // Start with a letter or an underscore
+            else if (startsName(line.charAt(right))) {
+                while (right < line.length() - 1 && (startsName(line.charAt(right + 1)) || Character.isDigit(line.charAt(right + 1)))) {
                     right++;
                 }
             }
@@ -74,12 +122,17 @@ public class JackTokenizer {
                     right++;
                 }
             }
-            tokens.offer(line.substring(left, right + 1));
+            String token = line.substring(left, right + 1);
+            tokens.offer(startsName(token.charAt(0)) ? names.computeIfAbsent(token, t -> t) : token);
             left = right + 1;
         }
     }
 
     public void advance() {
+        if (ring != null) {
+            if (current != TokenRing.END) current = ring.take();
+            return;
+        }
         tokens.poll();
         if (tokens.isEmpty() && reader.hasNextLine()) {
             parseLine();
@@ -87,7 +140,15 @@ public class JackTokenizer {
     }
 
     public tokenTypes tokenType() {
-        String s = tokens.peek();
+        return ring == null ? classify(tokens.peek()) : current.type();
+    }
+
+    // Identifiers and keywords are letters, digits and underscores, not starting with a digit.
+    private static boolean startsName(char c) {
+        return Character.isLetter(c) || c == '_';
+    }
+
+    private static tokenTypes classify(String s) {
         if (validSymbol.contains(s)) return tokenTypes.symbol;
         else if (validKeyword.contains(s)) return tokenTypes.keyword;
         else if (Character.isDigit(s.charAt(0))) return tokenTypes.integerConstant;
@@ -96,22 +157,22 @@ public class JackTokenizer {
     }
 
     public String KeyWord() {
-        return tokens.peek();
+        return peek();
     }
 
     public char symbol() {
-        return tokens.peek().charAt(0);
+        return peek().charAt(0);
     }
 
     public String identifier() {
-        return tokens.peek();
+        return peek();
     }
 
     public int intVal() {
-        return Integer.parseInt(tokens.peek());
+        return Integer.parseInt(peek());
     }
 
     public String stringVal() {
-        return tokens.peek().replaceAll("\"(.*)\"", "$1");
+        return peek().replaceAll("\"(.*)\"", "$1");
     }
 }
@@ -0,0 +1,88 @@
+import java.nio.file.Path;
+
+public class Options {
+    public static final String USAGE = "Usage: java JackAnalyzer [--ast] [-O] [--fold] [--strength] [--branches] [--dead-code] [--arrays] [--pool-strings] [--jobs n] [--incremental] [--pipelined-lexer] [--verbose] [--binary] <filename/dirname>";
+
+    // Parse each class into an Ast and generate code from it, instead of emitting VM code while parsing.
+    public boolean ast;
+    // Evaluate constant subexpressions and simplify identities such as x + 0 at compile time.
+    public boolean fold;
+    // Replace multiplication by a constant with additions, and drop division by 1 or -1.
+    public boolean strength;
+    // Test comparisons in if statements with a single if-goto into the THEN branch, instead of negating them.
+    public boolean branches;
+    // Remove statements that can never run and if/while statements whose condition is a constant.
+    public boolean deadCode;
+    // Address constant array indices with that k, reuse pointer 1 while it still points at the same array,
+    // and store array elements without the temp 0 shuffle when the value cannot disturb pointer 1.
+    public boolean arrays;
+    // Build each distinct string literal once per class and reuse it. Not part of -O: code that
+    // modifies or disposes of a literal would see the change the next time the literal is used.
+    public boolean poolStrings;
+    // Number of classes compiled at the same time in directory mode.
+    public int jobs = Runtime.getRuntime().availableProcessors();
+    // Skip classes whose source is unchanged since the last build, using the cache in the source directory.
+    public boolean incremental;
+    // Split the source into tokens on a separate thread that runs ahead of the parser. Does not change the output.
+    public boolean pipelinedLexer;
+    // Print what the optimization passes removed, per subroutine.
+    public boolean verbose;
+    // Write each class as .vmb bytecode instead of .vm text.
+    public boolean binary;
+    public String path;
+
+    public static Options parse(String[] args) {
+        Options options = new Options();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--ast" -> options.ast = true;
+                case "--fold" -> options.fold = true;
+                case "--strength" -> options.strength = true;
+                case "--branches" -> options.branches = true;
+                case "--dead-code" -> options.deadCode = true;
+                case "--arrays" -> options.arrays = true;
+                case "--pool-strings" -> options.poolStrings = true;
+                case "--incremental" -> options.incremental = true;
+                case "--pipelined-lexer" -> options.pipelinedLexer = true;
+                case "--verbose" -> options.verbose = true;
+                case "--binary" -> options.binary = true;
+                case "--jobs" -> {
+                    if (i + 1 == args.length) throw new IllegalArgumentException(USAGE);
+                    options.jobs = Integer.parseInt(args[++i]);
+                    if (options.jobs < 1) throw new IllegalArgumentException(USAGE);
+                }
+                // Every optimization pass.
+                case "-O" -> {
+                    options.fold = true;
+                    options.strength = true;
+                    options.branches = true;
+                    options.deadCode = true;
+                    options.arrays = true;
+                }
+                default -> {
+                    if (arg.startsWith("-") || options.path != null) {
+                        throw new IllegalArgumentException(USAGE);
+                    }
+                    options.path = arg;
+                }
+            }
+        }
+        // Optimization passes work on the Ast.
+        options.ast |= options.fold || options.strength || options.branches || options.deadCode || options.arrays || options.poolStrings;
+        if (options.path == null) {
+            throw new IllegalArgumentException(USAGE);
+        }
+        return options;
+    }
+
+    // The options that change generated code. Cached outputs are only reused under the same key.
+    public String outputKey() {
+        return STR."ast=\{ast},fold=\{fold},strength=\{strength},branches=\{branches},deadCode=\{deadCode},arrays=\{arrays},poolStrings=\{poolStrings},binary=\{binary}";
+    }
+
+    // The file a class compiles to.
+    public Path output(Path source) {
+        return Path.of(source.toString().replaceAll("(.*).jack", binary ? "$1.vmb" : "$1.vm"));
+    }
+}
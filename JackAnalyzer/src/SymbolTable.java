@@ -1,36 +1,44 @@
 import java.util.HashMap;
-import java.util.NoSuchElementException;
 
+// One scope of variables: a class, or a subroutine inside the class scope it is chained to. resolve looks a name
+// up in this scope and then the enclosing one, and returns everything code needs to refer to it at once.
 public class SymbolTable {
 
-    public enum Kind { STATIC, FIELD, ARG, VAR, NONE }
+    public enum Kind {
+        STATIC(VMWriter.Segment.STATIC), FIELD(VMWriter.Segment.THIS), ARG(VMWriter.Segment.ARGUMENT), VAR(VMWriter.Segment.LOCAL), NONE(null);
+
+        public final VMWriter.Segment segment;
+
+        Kind(VMWriter.Segment segment) {
+            this.segment = segment;
+        }
+    }
     private int staticCount;
     private int fieldCount;
     private int argCount;
     private int varCount;
 
-    static class Entry {
-        String type;
-        Kind kind;
-        int index;
-        public Entry(String type, Kind kind, int index) {
-            this.type = type;
-            this.kind = kind;
-            this.index = index;
-        }
-        public String toString() {
-            return STR."type: \{type}, kind: \{kind}, index: \{index}";
+    // A defined variable: the segment and index it lives at, and its type.
+    public record Binding(Kind kind, String type, int index) {
+        public VMWriter.Segment segment() {
+            return kind.segment;
         }
     }
 
-    private final HashMap<String, Entry> table;
+    private final HashMap<String, Binding> table;
+    private final SymbolTable enclosing;
 
     public SymbolTable() {
+        this(null);
+    }
+
+    public SymbolTable(SymbolTable enclosing) {
         table = new HashMap<>();
+        this.enclosing = enclosing;
     }
 
     public void define(Kind kind, String type, String name) {
-        table.put(name, new Entry(type, kind, varCount(kind)));
+        table.put(name, new Binding(kind, type, varCount(kind)));
         switch (kind) {
             case STATIC -> staticCount++;
             case FIELD -> fieldCount++;
@@ -58,22 +66,10 @@ public class SymbolTable {
         }
     }
 
-    public Kind kindOf(String name) {
-        return table.containsKey(name) ? table.get(name).kind : Kind.NONE;
-    }
-
-    public String typeOf(String name) {
-        if (table.containsKey(name)) {
-            return table.get(name).type;
-        }
-        throw new NoSuchElementException(STR."\{name} is not defined.");
-    }
-
-    public int indexOf(String name) {
-        if (table.containsKey(name)) {
-            return table.get(name).index;
-        }
-        throw new NoSuchElementException(STR."\{name} is not defined.");
+    // The binding of name here or in an enclosing scope, or null if it is not defined.
+    public Binding resolve(String name) {
+        Binding binding = table.get(name);
+        return binding != null || enclosing == null ? binding : enclosing.resolve(name);
     }
 
     public String toString() {
@@ -0,0 +1,90 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.locks.LockSupport;
+
+public class TokenRing {
+    // A bounded queue for exactly one producer thread and one consumer thread. Neither side takes a lock:
+    // each slot is written before tail is published with release semantics, and read after tail is
+    // observed with acquire semantics; head is published the same way in the other direction.
+    public record Token(JackTokenizer.tokenTypes type, String text) {}
+
+    // Marks the end of the input; its text is null, like the current token of a drained JackTokenizer.
+    public static final Token END = new Token(null, null);
+
+    private static final VarHandle HEAD;
+    private static final VarHandle TAIL;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            HEAD = lookup.findVarHandle(TokenRing.class, "head", long.class);
+            TAIL = lookup.findVarHandle(TokenRing.class, "tail", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Token[] slots;
+    private final int mask;
+    // Only written by the consumer.
+    private long head;
+    // Only written by the producer.
+    private long tail;
+    private volatile boolean closed;
+    private volatile Throwable failure;
+
+    // capacity is rounded up to a power of two.
+    public TokenRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new Token[size];
+        mask = size - 1;
+    }
+
+    // Returns false if the consumer closed the ring, in which case the producer should stop.
+    public boolean put(Token token) {
+        long t = tail;
+        for (int spins = 0; t - (long) HEAD.getAcquire(this) == slots.length; spins++) {
+            if (closed) return false;
+            backOff(spins);
+        }
+        slots[(int) t & mask] = token;
+        TAIL.setRelease(this, t + 1);
+        return true;
+    }
+
+    // Blocks until a token is available. Rethrows what the producer failed with, once every token before it is taken.
+    public Token take() {
+        long h = head;
+        for (int spins = 0; h == (long) TAIL.getAcquire(this); spins++) {
+            backOff(spins);
+        }
+        Token token = slots[(int) h & mask];
+        slots[(int) h & mask] = null;
+        HEAD.setRelease(this, h + 1);
+        if (token == END && failure != null) {
+            throw new RuntimeException(STR."Tokenizer failed: \{failure.getMessage()}", failure);
+        }
+        return token;
+    }
+
+    // Called by the producer instead of putting END when it could not finish.
+    public void fail(Throwable e) {
+        failure = e;
+        put(END);
+    }
+
+    // Called by the consumer when it stops reading early, so a producer waiting for room gives up.
+    public void close() {
+        closed = true;
+    }
+
+    // Spin briefly, since the other side is usually just a few tokens behind, then let it run.
+    // Spinning is pointless on a single processor: the other side cannot make progress meanwhile.
+    private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 64 : 0;
+
+    private static void backOff(int spins) {
+        if (spins < SPINS) Thread.onSpinWait();
+        else if (spins < SPINS + 16) Thread.yield();
+        else LockSupport.parkNanos(50_000);
+    }
+}
@@ -1,56 +1,142 @@
 import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
 
 public class VMWriter {
-    private final BufferedWriter bw;
     public enum Segment {CONSTANT, ARGUMENT, LOCAL, STATIC, THIS, THAT, POINTER, TEMP}
-    public enum Arithmetic {ADD, NEG, EQ, GT, LT, AND, OR, NOT}
+    public enum Arithmetic {ADD, SUB, NEG, EQ, GT, LT, AND, OR, NOT}
+    public enum Op {PUSH, POP, ARITHMETIC, LABEL, GOTO, IF_GOTO, FUNCTION, CALL, RETURN}
 
-    public VMWriter(FileWriter output) {
-        this.bw = new BufferedWriter(output);
+    // One VM command. name is the label, function or callee; index is the segment index, nVars or nArgs.
+    public record Command(Op op, Segment segment, Arithmetic arithmetic, String name, int index) {
+        static Command of(Arithmetic arithmetic) {
+            return new Command(Op.ARITHMETIC, null, arithmetic, null, 0);
+        }
+
+        public boolean is(Arithmetic arithmetic) {
+            return op == Op.ARITHMETIC && this.arithmetic == arithmetic;
+        }
+
+        @Override
+        public String toString() {
+            return switch (op) {
+                case PUSH, POP -> STR."\{op.name().toLowerCase()} \{segment.name().toLowerCase()} \{index}";
+                case ARITHMETIC -> arithmetic.name().toLowerCase();
+                case LABEL, GOTO -> STR."\{op.name().toLowerCase()} \{name}";
+                case IF_GOTO -> STR."if-goto \{name}";
+                case FUNCTION, CALL -> STR."\{op.name().toLowerCase()} \{name} \{index}";
+                case RETURN -> "return";
+            };
+        }
     }
 
-    private void writeWithLineBreak(String command) throws IOException {
-        bw.write(command); bw.newLine();
+    // Where commands end up: .vm text, .vmb bytecode, or a list while capturing.
+    private interface Output {
+        void write(Command command) throws IOException;
+
+        void close() throws IOException;
     }
 
-    private Segment mapKindToSegment(String kind) {
-        switch (kind.toLowerCase()) {
-            case "static" -> {
-                return Segment.STATIC;
-            }
-            case "arg" -> {
-                return Segment.ARGUMENT;
-            }
-            case "var" -> {
-                return Segment.LOCAL;
-            }
-            case "int" -> {
-                return Segment.CONSTANT;
-            }
-            case "field" -> {
-                return Segment.THIS;
-            }
-            case "that" -> {
-                return Segment.THAT;
+    private record TextOutput(BufferedWriter bw) implements Output {
+        public void write(Command command) throws IOException {
+            bw.write(command.toString()); bw.newLine();
+        }
+
+        public void close() throws IOException {
+            bw.close();
+        }
+    }
+
+    private record ListOutput(List<Command> commands) implements Output {
+        public void write(Command command) {
+            commands.add(command);
+        }
+
+        public void close() {}
+    }
+
+    private Output out;
+    // eq and not are held back until the next command, which may cancel or replace them:
+    // not; not does nothing, and eq; not; if-goto can test the difference of the operands instead.
+    private final ArrayList<Arithmetic> pending = new ArrayList<>();
+    private Output output;
+    // The variable whose value pointer 1 holds, as "segment index", or null if that is not known.
+    // Anything that could change either of them, or that control could jump over, forgets it.
+    private String thatBase;
+
+    public VMWriter(Writer output) {
+        out = new TextOutput(new BufferedWriter(output));
+    }
+
+    // Writes .vmb bytecode instead of text.
+    public VMWriter(OutputStream output) {
+        VmbEncoder encoder = new VmbEncoder(output);
+        out = new Output() {
+            public void write(Command command) {
+                encoder.write(command);
             }
-            case "temp" -> {
-                return Segment.TEMP;
+
+            public void close() throws IOException {
+                encoder.close();
             }
-            case "pointer" -> {
-                return Segment.POINTER;
+        };
+    }
+
+    private void writePending() throws IOException {
+        for (Arithmetic a : pending) out.write(Command.of(a));
+        pending.clear();
+    }
+
+    private void write(Op op, Segment segment, String name, int index) throws IOException {
+        writePending();
+        out.write(new Command(op, segment, null, name, index));
+    }
+
+    // Commands written between startCapture and endCapture are returned instead of written,
+    // so that the caller can place them somewhere else with replay.
+    public void startCapture() throws IOException {
+        writePending();
+        output = out;
+        out = new ListOutput(new ArrayList<>());
+    }
+
+    public List<Command> endCapture() throws IOException {
+        writePending();
+        List<Command> captured = ((ListOutput) out).commands();
+        out = output;
+        return captured;
+    }
+
+    public void replay(List<Command> commands) throws IOException {
+        thatBase = null;
+        for (Command command : commands) {
+            if (command.is(Arithmetic.EQ) || command.is(Arithmetic.NOT)) writeArithmetic(command.arithmetic());
+            else {
+                writePending();
+                out.write(command);
             }
-            default -> throw new UnsupportedOperationException(STR."Write \{kind} not implemented.");
         }
     }
 
-    public void writePush(String kind, int index) throws IOException {
-        writeWithLineBreak(STR."push \{mapKindToSegment(kind).name().toLowerCase()} \{index}");
+    public void writePush(Segment segment, int index) throws IOException {
+        write(Op.PUSH, segment, null, index);
     }
 
-    public void writePop(String kind, int index) throws IOException {
-        writeWithLineBreak(STR."pop \{mapKindToSegment(kind).name().toLowerCase()} \{index}");
+    public void writePop(Segment segment, int index) throws IOException {
+        if (segment == Segment.POINTER || STR."\{segment} \{index}".equals(thatBase)) thatBase = null;
+        write(Op.POP, segment, null, index);
+    }
+
+    // Points THAT at the array held in a variable, unless it already points there.
+    public void writePointThat(Segment segment, int index) throws IOException {
+        String base = STR."\{segment} \{index}";
+        if (base.equals(thatBase)) return;
+        writePush(segment, index);
+        writePop(Segment.POINTER, 1);
+        thatBase = base;
     }
 
     private Arithmetic mapOpToArithmetic(Character op) {
@@ -87,35 +173,60 @@ public class VMWriter {
         switch (op) {
             case '*' -> writeCall("Math.multiply", 2);
             case '/' -> writeCall("Math.divide", 2);
-            default -> writeWithLineBreak(mapOpToArithmetic(op).name().toLowerCase());
+            default -> writeArithmetic(mapOpToArithmetic(op));
+        }
+    }
+
+    public void writeArithmetic(Arithmetic command) throws IOException {
+        if (command == Arithmetic.NOT && !pending.isEmpty() && pending.getLast() == Arithmetic.NOT) {
+            pending.removeLast();
+        }
+        else if (command == Arithmetic.NOT || command == Arithmetic.EQ) {
+            pending.add(command);
+        }
+        else {
+            writePending();
+            out.write(Command.of(command));
         }
     }
 
     public void writeLabel(String label) throws IOException {
-        writeWithLineBreak(STR."label \{label}");
+        thatBase = null;
+        write(Op.LABEL, null, label, 0);
     }
 
     public void writeGoto(String label) throws IOException {
-        writeWithLineBreak(STR."goto \{label}");
+        thatBase = null;
+        write(Op.GOTO, null, label, 0);
     }
 
     public void writeIf(String label) throws IOException {
-        writeWithLineBreak(STR."if-goto \{label}");
+        // a == b is false exactly when a - b is not 0.
+        int n = pending.size();
+        if (n >= 2 && pending.get(n - 2) == Arithmetic.EQ && pending.get(n - 1) == Arithmetic.NOT) {
+            pending.subList(n - 2, n).clear();
+            pending.add(Arithmetic.SUB);
+        }
+        write(Op.IF_GOTO, null, label, 0);
     }
 
     public void writeCall(String name, int nArgs) throws IOException {
-        writeWithLineBreak(STR."call \{name} \{nArgs}");
+        thatBase = null;
+        write(Op.CALL, null, name, nArgs);
     }
 
     public void writeFunction(String name, int nVars) throws IOException {
-        writeWithLineBreak(STR."function \{name} \{nVars}");
+        thatBase = null;
+        write(Op.FUNCTION, null, name, nVars);
     }
 
     public void writeReturn() throws IOException {
-        writeWithLineBreak("return");
+        thatBase = null;
+        write(Op.RETURN, null, null, 0);
     }
 
     public void close() throws IOException {
-        bw.close();
+        writePending();
+        out.close();
     }
 }
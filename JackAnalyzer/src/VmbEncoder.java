@@ -0,0 +1,101 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Writes VM commands as .vmb bytecode, which VMTranslator reads without splitting text apart:
+//
+//   "VMB1", varint pool size, then each pool name as varint byte length and UTF-8 bytes,
+//   then one command after another until the end of the file:
+//     arithmetic        opcode 0-8, in Arithmetic order (add, sub, neg, eq, gt, lt, and, or, not)
+//     push, pop         opcode 16, 17, segment byte in Segment order, varint index
+//     label, goto, if   opcode 18, 19, 20, varint pool index
+//     function, call    opcode 21, 22, varint pool index, varint nVars or nArgs
+//     return            opcode 23
+//
+// Varints are unsigned LEB128: 7 bits per byte, low bits first, high bit set on every byte but the last.
+// The pool holds each function, callee and label name of the file once, in order of first use.
+public class VmbEncoder {
+    public static final byte[] MAGIC = "VMB1".getBytes(StandardCharsets.US_ASCII);
+    private static final int PUSH = 16, POP = 17, LABEL = 18, GOTO = 19, IF_GOTO = 20, FUNCTION = 21, CALL = 22, RETURN = 23;
+
+    private final OutputStream output;
+    private final Map<String, Integer> pool = new LinkedHashMap<>();
+    // The commands, written after the pool once every name is known. close reuses it for the header.
+    private ByteBuffer body = ByteBuffer.allocate(4096);
+
+    public VmbEncoder(OutputStream output) {
+        this.output = output;
+    }
+
+    public void write(VMWriter.Command command) {
+        switch (command.op()) {
+            case ARITHMETIC -> put(command.arithmetic().ordinal());
+            case PUSH, POP -> {
+                put(command.op() == VMWriter.Op.PUSH ? PUSH : POP);
+                put(command.segment().ordinal());
+                putVarint(command.index());
+            }
+            case LABEL, GOTO, IF_GOTO -> {
+                put(switch (command.op()) {
+                    case LABEL -> LABEL;
+                    case GOTO -> GOTO;
+                    default -> IF_GOTO;
+                });
+                putVarint(name(command.name()));
+            }
+            case FUNCTION, CALL -> {
+                put(command.op() == VMWriter.Op.FUNCTION ? FUNCTION : CALL);
+                putVarint(name(command.name()));
+                putVarint(command.index());
+            }
+            case RETURN -> put(RETURN);
+        }
+    }
+
+    private int name(String name) {
+        return pool.computeIfAbsent(name, n -> pool.size());
+    }
+
+    // Grows body so that it has room for at least n more bytes.
+    private void reserve(int n) {
+        if (body.remaining() >= n) return;
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(body.capacity() * 2, body.position() + n));
+        body.flip();
+        larger.put(body);
+        body = larger;
+    }
+
+    private void put(int b) {
+        reserve(1);
+        body.put((byte) b);
+    }
+
+    // A varint takes at most 5 bytes for an int.
+    private void putVarint(int value) {
+        reserve(5);
+        while ((value & ~0x7F) != 0) {
+            body.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        body.put((byte) value);
+    }
+
+    public void close() throws IOException {
+        ByteBuffer commands = body;
+        body = ByteBuffer.allocate(64);
+        for (byte b : MAGIC) put(b);
+        putVarint(pool.size());
+        for (String name : pool.keySet()) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            putVarint(bytes.length);
+            reserve(bytes.length);
+            body.put(bytes);
+        }
+        output.write(body.array(), 0, body.position());
+        output.write(commands.array(), 0, commands.position());
+        output.close();
+    }
+}
@@ -0,0 +1,283 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+// Times the toolchain on a program written by JackGenerator, stage by stage and as a whole:
+//
+//   tokenize   JackTokenizer over every class            per line of Jack
+//   compile    JackAnalyzer: tokenizer, parser, codegen   per line of Jack
+//   translate  VMTranslator on the compiled classes       per line of VM code
+//   assemble   Assembler on the translated program        per line of assembly
+//   pipeline   Toolchain.build, writing the .hack         per line of Jack
+//
+// Each stage runs --warmup times untimed and then --runs times. The run with the median time gives lines per
+// second and the bytes all threads allocated per line; the peak heap is the highest of the runs, measured from
+// a collection just before each. A program too large for ROM is only tokenized, compiled and translated.
+//
+// With --baseline, a stage that is slower or allocates more than --tolerance percent against the file is a
+// regression, and the benchmark exits with 1. The peak heap is shown against the baseline but not checked, as
+// it moves with the collector. --save writes the results as a baseline:
+//
+//   # comment
+//   program parameters                          how the program was generated and built; a baseline
+//                                               only applies to the same ones
+//   stage name lines/s bytes/line peak-heap     for each stage
+public class Benchmark {
+    private static final String USAGE = """
+            usage: Benchmark [--classes dir] [--jack-classes n] [--subroutines n] [--statements n] [--depth n] [--seed n]
+                             [--warmup n] [--runs n] [--jobs n] [--baseline file] [--tolerance percent] [--save file]
+                             [--vm option]... [compiler options]
+              --classes dir         directory holding the compiled modules, as for Toolchain
+              --jack-classes n      classes in the generated program (default 6)
+              --subroutines n       functions in each class (default 4)
+              --statements n        statements in each function (default 6)
+              --depth n             depth of each expression (default 2)
+              --seed n              seed of the generator (default 1)
+              --warmup n            untimed runs of each stage (default 5)
+              --runs n              timed runs of each stage (default 10)
+              --jobs n              classes the pipeline compiles at the same time (default 1)
+              --baseline file       compare with the results saved in file, and exit with 1 on a regression
+              --tolerance percent   how much slower or larger a stage may be than its baseline (default 10)
+              --save file           save the results as a baseline
+              --vm option           pass option to VMTranslator
+            Any other option is passed to JackAnalyzer.""";
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public record Result(String stage, double linesPerSecond, double bytesPerLine, long peakHeap) {}
+
+    private interface Run {
+        void run() throws IOException;
+    }
+
+    private final Stage compiler;
+    private final Stage translator;
+    private final Stage assembler;
+    private final Toolchain toolchain;
+    private final String[] compilerFlags;
+    private final String[] translatorFlags;
+    private final int warmup;
+    private final int runs;
+
+    public Benchmark(Path classes, int jobs, int warmup, int runs, String[] compilerFlags, String[] translatorFlags) throws IOException {
+        if (warmup < 0 || runs < 1) throw new IllegalArgumentException("A stage needs at least one timed run.");
+        compiler = Stage.load(classes, "JackAnalyzer");
+        translator = Stage.load(classes, "VMTranslator");
+        assembler = Stage.load(classes, "Assembler");
+        toolchain = new Toolchain(classes, false, jobs, compilerFlags, translatorFlags);
+        this.compilerFlags = compilerFlags;
+        this.translatorFlags = translatorFlags;
+        this.warmup = warmup;
+        this.runs = runs;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path classes = Path.of(System.getProperty("toolchain.classes", "out/production"));
+        int jackClasses = 6, subroutines = 4, statements = 6, depth = 2;
+        long seed = 1;
+        int warmup = 5, runs = 10, jobs = 1;
+        double tolerance = 10;
+        Path baseline = null, save = null;
+        List<String> flags = new ArrayList<>();
+        List<String> vmFlags = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--classes" -> classes = Path.of(value(args, ++i));
+                case "--jack-classes" -> jackClasses = Integer.parseInt(value(args, ++i));
+                case "--subroutines" -> subroutines = Integer.parseInt(value(args, ++i));
+                case "--statements" -> statements = Integer.parseInt(value(args, ++i));
+                case "--depth" -> depth = Integer.parseInt(value(args, ++i));
+                case "--seed" -> seed = Long.parseLong(value(args, ++i));
+                case "--warmup" -> warmup = Integer.parseInt(value(args, ++i));
+                case "--runs" -> runs = Integer.parseInt(value(args, ++i));
+                case "--jobs" -> jobs = Integer.parseInt(value(args, ++i));
+                case "--baseline" -> baseline = Path.of(value(args, ++i));
+                case "--tolerance" -> tolerance = Double.parseDouble(value(args, ++i));
+                case "--save" -> save = Path.of(value(args, ++i));
+                case "--vm" -> vmFlags.add(value(args, ++i));
+                default -> {
+                    if (!args[i].startsWith("-")) throw new IllegalArgumentException(USAGE);
+                    flags.add(args[i]);
+                }
+            }
+        }
+        String program = STR."classes=\{jackClasses} subroutines=\{subroutines} statements=\{statements} depth=\{depth} seed=\{seed} compiler=\{String.join(",", flags)} vm=\{String.join(",", vmFlags)}";
+        Map<String, Result> base = baseline == null ? Map.of() : readBaseline(baseline, program);
+        Benchmark benchmark = new Benchmark(classes, jobs, warmup, runs, flags.toArray(new String[0]), vmFlags.toArray(new String[0]));
+        JackGenerator generator = new JackGenerator(jackClasses, subroutines, statements, depth, seed);
+        Path work = Files.createTempDirectory("benchmark");
+        List<Result> results;
+        try {
+            results = benchmark.run(generator, work.resolve("Program"));
+        } finally {
+            delete(work);
+        }
+        System.out.println(STR."program: \{program}");
+        System.out.println(String.format("%-10s %12s %12s %14s  %s", "stage", "lines/s", "bytes/line", "peak heap MB", baseline == null ? "" : "against baseline"));
+        List<String> regressions = new ArrayList<>();
+        for (Result r : results) {
+            Result b = base.get(r.stage());
+            String against = "";
+            if (b != null) {
+                double speed = change(r.linesPerSecond(), b.linesPerSecond());
+                double allocation = change(r.bytesPerLine(), b.bytesPerLine());
+                against = String.format("%+.1f%% lines/s, %+.1f%% bytes/line, %+.1f%% heap", speed, allocation, change(r.peakHeap(), b.peakHeap()));
+                if (-speed > tolerance) regressions.add(String.format("%s is %.1f%% slower", r.stage(), -speed));
+                if (allocation > tolerance) regressions.add(String.format("%s allocates %.1f%% more per line", r.stage(), allocation));
+            }
+            else if (baseline != null) {
+                against = "not in baseline";
+            }
+            System.out.println(String.format("%-10s %12.0f %12.1f %14.1f  %s", r.stage(), r.linesPerSecond(), r.bytesPerLine(), r.peakHeap() / 1048576.0, against));
+        }
+        if (save != null) writeBaseline(save, program, results);
+        if (!regressions.isEmpty()) {
+            for (String r : regressions) System.out.println(STR."regression: \{r}");
+            System.exit(1);
+        }
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length) throw new IllegalArgumentException(USAGE);
+        return args[i];
+    }
+
+    // Writes the program into dir, and times each stage on it.
+    public List<Result> run(JackGenerator generator, Path dir) throws IOException {
+        Files.createDirectories(dir);
+        List<Path> sources = new ArrayList<>();
+        long jackLines = 0;
+        for (int c = 0; c < generator.classes(); c++) {
+            List<String> lines = generator.generate(c);
+            Path source = dir.resolve(STR."\{JackGenerator.className(c)}.jack");
+            Files.write(source, lines);
+            sources.add(source);
+            jackLines += lines.size();
+        }
+        // The input of each stage is the output of the one before, made once up front.
+        Map<String, List<String>> vm = new LinkedHashMap<>();
+        for (Path source : sources) vm.put(Toolchain.className(source), compile(source));
+        long vmLines = vm.values().stream().mapToLong(List::size).sum();
+        List<String> asm = new ArrayList<>();
+        translate(vm, asm::addAll);
+
+        List<Result> results = new ArrayList<>();
+        results.add(measure("tokenize", jackLines, () -> {
+            for (Path source : sources) {
+                compiler.call("tokenize", new Class<?>[] {Path.class, String[].class}, source, compilerFlags);
+            }
+        }));
+        results.add(measure("compile", jackLines, () -> {
+            for (Path source : sources) compile(source);
+        }));
+        results.add(measure("translate", vmLines, () -> translate(vm, lines -> {})));
+        try {
+            assemble(asm);
+        } catch (IllegalStateException e) {
+            // The other stages still scale past what a Hack computer can hold.
+            System.out.println(STR."assemble and pipeline left out: \{e.getMessage().lines().findFirst().orElse("")}");
+            return results;
+        }
+        results.add(measure("assemble", asm.size(), () -> assemble(asm)));
+        results.add(measure("pipeline", jackLines, () -> toolchain.build(dir)));
+        return results;
+    }
+
+    private void assemble(List<String> asm) throws IOException {
+        assembler.call("assemble", new Class<?>[] {Iterator.class, Writer.class}, asm.iterator(), Writer.nullWriter());
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> compile(Path source) throws IOException {
+        return (List<String>) compiler.call("compileToLines", new Class<?>[] {Path.class, String[].class}, source, compilerFlags);
+    }
+
+    private void translate(Map<String, List<String>> vm, Consumer<List<String>> sink) throws IOException {
+        translator.call("translate", new Class<?>[] {Iterator.class, Consumer.class, String[].class}, vm.entrySet().iterator(), sink, translatorFlags);
+    }
+
+    private Result measure(String stage, long lines, Run run) throws IOException {
+        for (int i = 0; i < warmup; i++) run.run();
+        long[] nanos = new long[runs];
+        long[] bytes = new long[runs];
+        long peak = 0;
+        for (int i = 0; i < runs; i++) {
+            System.gc();
+            List<MemoryPoolMXBean> heap = heapPools();
+            heap.forEach(MemoryPoolMXBean::resetPeakUsage);
+            long allocated = THREADS.getTotalThreadAllocatedBytes();
+            long start = System.nanoTime();
+            run.run();
+            nanos[i] = System.nanoTime() - start;
+            bytes[i] = THREADS.getTotalThreadAllocatedBytes() - allocated;
+            peak = Math.max(peak, heap.stream().mapToLong(p -> p.getPeakUsage().getUsed()).sum());
+        }
+        Integer[] order = new Integer[runs];
+        Arrays.setAll(order, i -> i);
+        Arrays.sort(order, Comparator.comparingLong(i -> nanos[i]));
+        int median = order[runs / 2];
+        return new Result(stage, lines * 1e9 / nanos[median], (double) bytes[median] / lines, peak);
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        return ManagementFactory.getMemoryPoolMXBeans().stream().filter(p -> p.getType() == MemoryType.HEAP && p.isValid()).toList();
+    }
+
+    // The change from base to value, in percent.
+    private static double change(double value, double base) {
+        return base == 0 ? 0 : (value - base) * 100 / base;
+    }
+
+    public static Map<String, Result> readBaseline(Path path, String program) throws IOException {
+        Map<String, Result> results = new HashMap<>();
+        String measured = null;
+        List<String> lines = Files.readAllLines(path);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] words = line.split("\\s+");
+            try {
+                switch (words[0]) {
+                    case "program" -> measured = line.substring("program".length()).trim();
+                    case "stage" -> results.put(words[1], new Result(words[1], Double.parseDouble(words[2]), Double.parseDouble(words[3]), Long.parseLong(words[4])));
+                    default -> throw new IllegalArgumentException(words[0]);
+                }
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                throw new IllegalArgumentException(STR."\{path}:\{i + 1}: not a baseline line: \{line}");
+            }
+        }
+        if (!program.equals(measured)) {
+            throw new IllegalArgumentException(STR."\{path} was measured on another program: \{measured}");
+        }
+        return results;
+    }
+
+    public static void writeBaseline(Path path, String program, List<Result> results) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("# Benchmark baseline: stage name lines/s bytes/line peak-heap");
+        lines.add(STR."program \{program}");
+        for (Result r : results) {
+            lines.add(STR."stage \{r.stage()} \{Math.round(r.linesPerSecond())} \{Math.round(r.bytesPerLine() * 10) / 10.0} \{r.peakHeap()}");
+        }
+        Files.write(path, lines);
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).toList()) Files.delete(p);
+        }
+    }
+}
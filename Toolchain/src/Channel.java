@@ -0,0 +1,60 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+public class Channel<T> implements Iterable<T> {
+    // Connects two stages running on different threads. The queue is bounded, so a fast producer
+    // waits for its consumer instead of buffering the whole program.
+    private static final Object END = new Object();
+    private final BlockingQueue<Object> queue;
+
+    public Channel(int capacity) {
+        queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public void send(T item) {
+        put(item);
+    }
+
+    // Tells the consumer that nothing else will be sent.
+    public void close() {
+        put(END);
+    }
+
+    private void put(Object item) {
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Pipeline interrupted.");
+        }
+    }
+
+    // Can only be iterated once, by the consuming stage.
+    public Iterator<T> iterator() {
+        return new Iterator<>() {
+            private Object next;
+
+            public boolean hasNext() {
+                if (next == null) {
+                    try {
+                        next = queue.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException("Pipeline interrupted.");
+                    }
+                }
+                return next != END;
+            }
+
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (!hasNext()) throw new NoSuchElementException("Channel is closed.");
+                T item = (T) next;
+                next = null;
+                return item;
+            }
+        };
+    }
+}
@@ -0,0 +1,209 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+public class Daemon {
+    // Editors tend to save a file in several steps; events that arrive this close together are built once.
+    private static final long SETTLE_MILLIS = 20;
+
+    private final Toolchain toolchain;
+    private final WatchService watcher;
+    private final Map<Path, Project> projects = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    // The VM commands of every class of a directory stay in memory between builds,
+    // so a build only compiles the sources that changed since the last one.
+    private class Project {
+        private final Path dir;
+        private final Map<String, List<String>> classes = new TreeMap<>();
+        private final Set<Path> dirty = new HashSet<>();
+        private String result;
+
+        Project(Path dir) throws IOException {
+            this.dir = dir;
+            dirty.addAll(Toolchain.sources(dir));
+        }
+
+        synchronized void changed(Path file) {
+            dirty.add(file);
+            result = null;
+        }
+
+        synchronized void rescan() throws IOException {
+            classes.clear();
+            dirty.addAll(Toolchain.sources(dir));
+            result = null;
+        }
+
+        // Returns the answer to a build request; nothing is done if no source changed since the last build.
+        synchronized String build() {
+            if (result != null) return result;
+            long start = System.nanoTime();
+            // A source that did not compile stays dirty, so the build after its next change compiles it again.
+            try {
+                for (Path p : List.copyOf(dirty)) {
+                    try {
+                        if (Files.exists(p) && Toolchain.isSource(p)) classes.put(Toolchain.className(p), toolchain.compile(p));
+                        else classes.remove(Toolchain.className(p));
+                    } catch (IOException | RuntimeException e) {
+                        return result = STR."error \{p.getFileName()}: \{e.getMessage()}";
+                    }
+                    dirty.remove(p);
+                }
+                Path hack = toolchain.link(dir, vm -> classes.forEach((name, lines) -> vm.send(Map.entry(name, lines))));
+                result = STR."ok \{hack} \{(System.nanoTime() - start) / 1_000_000} ms";
+            } catch (IOException | RuntimeException e) {
+                result = STR."error \{e.getMessage()}";
+            }
+            return result;
+        }
+    }
+
+    public Daemon(Toolchain toolchain) throws IOException {
+        this.toolchain = toolchain;
+        watcher = FileSystems.getDefault().newWatchService();
+    }
+
+    // Starts watching dir, if it is not watched yet, and returns its project.
+    private Project project(Path dir) throws IOException {
+        Path key = dir.toAbsolutePath().normalize();
+        Project project = projects.get(key);
+        if (project != null) return project;
+        synchronized (projects) {
+            project = projects.get(key);
+            if (project == null) {
+                project = new Project(key);
+                key.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                projects.put(key, project);
+            }
+        }
+        return project;
+    }
+
+    // Watches dir from now on and builds it right away, so the first request is already warm.
+    public void watch(Path dir) throws IOException {
+        System.out.println(project(dir).build());
+    }
+
+    // Rebuilds a project as soon as one of its sources changes, so the next request finds it up to date.
+    private void watchLoop() {
+        try {
+            while (running) {
+                WatchKey key = watcher.take();
+                Thread.sleep(SETTLE_MILLIS);
+                Set<Project> changed = new HashSet<>();
+                do {
+                    Project project = projects.get((Path) key.watchable());
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (project == null) continue;
+                        if (event.kind() == OVERFLOW) {
+                            project.rescan();
+                            changed.add(project);
+                            continue;
+                        }
+                        Path file = project.dir.resolve((Path) event.context());
+                        String name = file.getFileName().toString();
+                        // A .vm file next to its .jack source is an output of the build, not an input.
+                        if (name.endsWith(".jack") || name.endsWith(".vm") && !Files.exists(file.resolveSibling(name.replace(".vm", ".jack")))) {
+                            project.changed(file);
+                            changed.add(project);
+                        }
+                    }
+                    key.reset();
+                    key = watcher.poll();
+                } while (key != null);
+                for (Project project : changed) project.build();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopping
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Answers requests on socket until one of them is "stop". Each request is one line and gets one line back:
+    //   build <directory>  ->  ok <hack file> <milliseconds>  |  error <message>
+    //   stop               ->  ok stopping
+    public void serve(Path socket) throws IOException {
+        Files.deleteIfExists(socket);
+        Thread watching = Thread.ofPlatform().daemon().name("watcher").start(this::watchLoop);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+             ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            System.out.println(STR."Listening on \{socket}.");
+            while (running) {
+                SocketChannel client = server.accept();
+                clients.submit(() -> answer(client, server));
+            }
+            clients.shutdown();
+            clients.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // accept fails once a stop request has closed the server.
+            if (running) throw e;
+        } finally {
+            running = false;
+            watcher.close();
+            watching.interrupt();
+            Files.deleteIfExists(socket);
+        }
+    }
+
+    private Void answer(SocketChannel client, ServerSocketChannel server) throws IOException {
+        try (client;
+             BufferedReader in = new BufferedReader(Channels.newReader(client, StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(Channels.newWriter(client, StandardCharsets.UTF_8), true)) {
+            String request = in.readLine();
+            if (request == null) return null;
+            if (request.equals("stop")) {
+                out.println("ok stopping");
+                running = false;
+                server.close();
+            }
+            else if (request.startsWith("build ")) {
+                Path dir = Path.of(request.substring("build ".length()));
+                if (!Files.isDirectory(dir)) out.println(STR."error \{dir} is not a directory.");
+                else out.println(project(dir).build());
+            }
+            else out.println(STR."error Unknown request \{request}.");
+        }
+        return null;
+    }
+
+    // Sends one request to the daemon listening on socket and returns its answer.
+    public static String request(Path socket, String request) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+             BufferedReader in = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(Channels.newWriter(channel, StandardCharsets.UTF_8), true)) {
+            out.println(request);
+            String answer = in.readLine();
+            if (answer == null) throw new IOException("The toolchain closed the connection without answering.");
+            return answer;
+        }
+    }
+}
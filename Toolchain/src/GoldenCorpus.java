@@ -0,0 +1,223 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+// Builds each program of a corpus with the toolchain, runs it on HackSimulator until Sys.halt, checks what it
+// left in RAM, and compares the cycles it ran and the words of ROM it takes with a baseline.
+//
+// The corpus has a directory for each program and an os directory, an OS small enough to run without a screen
+// or keyboard. A program is built from its own classes and the OS classes it does not have itself. Its
+// expected.txt gives the RAM it must leave behind:
+//
+//   # comment
+//   ram address value...         the words of RAM from address on
+//
+// --save writes a baseline, which only applies to the options it was measured with:
+//
+//   # comment
+//   options options              the compiler and translator options
+//   program name cycles words    for each program
+//
+// A program is a regression when it runs more cycles or takes more words than --tolerance percent over its
+// baseline. A wrong result, a program that does not halt within --cycles, or a regression makes the run exit
+// with 1. A program that does better is only reported, so that the baseline can be saved again.
+public class GoldenCorpus {
+    private static final String USAGE = """
+            usage: GoldenCorpus [--classes dir] [--corpus dir] [--cycles n] [--baseline file] [--tolerance percent]
+                                [--save file] [--vm option]... [compiler options]
+              --classes dir         directory holding the compiled modules, as for Toolchain
+              --corpus dir          the programs to run (default Toolchain/corpus)
+              --cycles n            cycles a program may run before it is stopped (default 100000000)
+              --baseline file       compare with the cycles and words saved in file, and exit with 1 on a regression
+              --tolerance percent   how much a program may grow over its baseline (default 0)
+              --save file           save the cycles and words as a baseline
+              --vm option           pass option to VMTranslator
+            Any other option is passed to JackAnalyzer.""";
+    private static final String OS = "os";
+
+    public record Result(String program, long cycles, long words) {}
+
+    private final Toolchain toolchain;
+    private final Stage simulator;
+    private final long limit;
+
+    public GoldenCorpus(Path classes, long limit, String[] compilerFlags, String[] translatorFlags) throws IOException {
+        // The .asm is kept for the simulator, which finds Sys.halt through its labels.
+        toolchain = new Toolchain(classes, true, Runtime.getRuntime().availableProcessors(), compilerFlags, translatorFlags);
+        simulator = Stage.load(classes, "HackSimulator");
+        this.limit = limit;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path classes = Path.of(System.getProperty("toolchain.classes", "out/production"));
+        Path corpus = Path.of("Toolchain/corpus");
+        long limit = 100_000_000L;
+        double tolerance = 0;
+        Path baseline = null, save = null;
+        List<String> flags = new ArrayList<>();
+        List<String> vmFlags = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--classes" -> classes = Path.of(value(args, ++i));
+                case "--corpus" -> corpus = Path.of(value(args, ++i));
+                case "--cycles" -> limit = Long.parseLong(value(args, ++i));
+                case "--baseline" -> baseline = Path.of(value(args, ++i));
+                case "--tolerance" -> tolerance = Double.parseDouble(value(args, ++i));
+                case "--save" -> save = Path.of(value(args, ++i));
+                case "--vm" -> vmFlags.add(value(args, ++i));
+                default -> {
+                    if (!args[i].startsWith("-")) throw new IllegalArgumentException(USAGE);
+                    flags.add(args[i]);
+                }
+            }
+        }
+        List<String> all = new ArrayList<>(flags);
+        for (String f : vmFlags) all.add(STR."--vm \{f}");
+        String options = all.isEmpty() ? "none" : String.join(" ", all);
+        Map<String, Result> base = baseline == null ? Map.of() : readBaseline(baseline, options);
+        GoldenCorpus golden = new GoldenCorpus(classes, limit, flags.toArray(new String[0]), vmFlags.toArray(new String[0]));
+
+        List<Result> results = new ArrayList<>();
+        List<String> failures = new ArrayList<>();
+        for (Path program : programs(corpus)) {
+            String name = program.getFileName().toString();
+            Result r;
+            try {
+                r = golden.run(program, corpus.resolve(OS));
+            } catch (RuntimeException e) {
+                // A program that does not build fails like one that runs wrong.
+                failures.add(STR."\{name}: \{e.getMessage()}");
+                System.out.println(String.format("%-12s failed", name));
+                continue;
+            }
+            results.add(r);
+            Result b = base.get(name);
+            String against = "";
+            if (b != null) {
+                double cycles = change(r.cycles(), b.cycles());
+                double words = change(r.words(), b.words());
+                against = String.format("%+.1f%% cycles, %+.1f%% words", cycles, words);
+                if (cycles > tolerance) failures.add(String.format("%s runs %.1f%% more cycles (%d, baseline %d)", name, cycles, r.cycles(), b.cycles()));
+                if (words > tolerance) failures.add(String.format("%s takes %.1f%% more words (%d, baseline %d)", name, words, r.words(), b.words()));
+                if (cycles < 0 || words < 0) against += ", better than baseline";
+            }
+            else if (baseline != null) {
+                against = "not in baseline";
+            }
+            System.out.println(String.format("%-12s %10d cycles %7d words  %s", name, r.cycles(), r.words(), against));
+        }
+        if (save != null) writeBaseline(save, options, results);
+        if (!failures.isEmpty()) {
+            for (String f : failures) System.out.println(STR."failed: \{f}");
+            System.exit(1);
+        }
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length) throw new IllegalArgumentException(USAGE);
+        return args[i];
+    }
+
+    // The program directories of corpus, by name.
+    public static List<Path> programs(Path corpus) throws IOException {
+        try (Stream<Path> stream = Files.list(corpus)) {
+            return stream.filter(p -> Files.isDirectory(p) && !p.getFileName().toString().equals(OS)).sorted().toList();
+        }
+    }
+
+    // Builds and runs one program. Throws IllegalStateException if it does not halt or leaves the wrong RAM.
+    public Result run(Path program, Path os) throws IOException {
+        String name = program.getFileName().toString();
+        long[] expected = readExpected(program.resolve("expected.txt"));
+        Path work = Files.createTempDirectory("corpus");
+        try {
+            Path dir = work.resolve(name);
+            Files.createDirectories(dir);
+            for (Path source : jackFiles(os)) Files.copy(source, dir.resolve(source.getFileName()));
+            for (Path source : jackFiles(program)) Files.copy(source, dir.resolve(source.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            toolchain.build(dir);
+            List<String> hack = Files.readAllLines(work.resolve(STR."\{name}.hack"));
+            List<String> asm = Files.readAllLines(work.resolve(STR."\{name}.asm"));
+            long[] ran = (long[]) simulator.call("simulate", new Class<?>[] {List.class, List.class, long.class, int.class, int.class},
+                    hack, asm, limit, (int) expected[0], expected.length - 1);
+            if (ran[0] == -1) throw new IllegalStateException(STR."did not halt within \{limit} cycles");
+            for (int i = 1; i < expected.length; i++) {
+                if (ran[i] != expected[i]) {
+                    throw new IllegalStateException(STR."RAM[\{expected[0] + i - 1}] is \{ran[i]}, expected \{expected[i]}");
+                }
+            }
+            return new Result(name, ran[0], hack.size());
+        } finally {
+            delete(work);
+        }
+    }
+
+    private static List<Path> jackFiles(Path dir) throws IOException {
+        try (Stream<Path> stream = Files.list(dir)) {
+            return stream.filter(p -> p.toString().endsWith(".jack")).sorted().toList();
+        }
+    }
+
+    // The address, then the values expected from it on.
+    private static long[] readExpected(Path path) throws IOException {
+        for (String line : Files.readAllLines(path)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] words = line.split("\\s+");
+            if (!words[0].equals("ram") || words.length < 2) throw new IllegalArgumentException(STR."\{path}: not an expected line: \{line}");
+            return Arrays.stream(words, 1, words.length).mapToLong(Long::parseLong).toArray();
+        }
+        throw new IllegalArgumentException(STR."\{path} expects nothing.");
+    }
+
+    // The change from base to value, in percent.
+    private static double change(double value, double base) {
+        return base == 0 ? 0 : (value - base) * 100 / base;
+    }
+
+    public static Map<String, Result> readBaseline(Path path, String options) throws IOException {
+        Map<String, Result> results = new HashMap<>();
+        String measured = null;
+        List<String> lines = Files.readAllLines(path);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] words = line.split("\\s+");
+            try {
+                switch (words[0]) {
+                    case "options" -> measured = line.substring("options".length()).trim();
+                    case "program" -> results.put(words[1], new Result(words[1], Long.parseLong(words[2]), Long.parseLong(words[3])));
+                    default -> throw new IllegalArgumentException(words[0]);
+                }
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                throw new IllegalArgumentException(STR."\{path}:\{i + 1}: not a baseline line: \{line}");
+            }
+        }
+        if (!options.equals(measured)) {
+            throw new IllegalArgumentException(STR."\{path} was measured with other options: \{measured}");
+        }
+        return results;
+    }
+
+    public static void writeBaseline(Path path, String options, List<Result> results) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("# GoldenCorpus baseline: program name cycles words");
+        lines.add(STR."options \{options}");
+        for (Result r : results) lines.add(STR."program \{r.program()} \{r.cycles()} \{r.words()}");
+        Files.write(path, lines);
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).toList()) Files.delete(p);
+        }
+    }
+}
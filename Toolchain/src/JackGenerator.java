@@ -0,0 +1,120 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Writes a synthetic Jack program for Benchmark: classes C0, C1, ... with the given number of functions each,
+// every function the given number of statements long, with expressions nested depth deep. Functions call
+// each other across classes. The program only has to compile, translate and assemble, not to run, so the OS
+// is not called and the calls are not checked for termination. Each class is drawn from its own generator
+// seeded from seed and its number, so the same parameters always give the same program.
+public class JackGenerator {
+    private static final String[] LOCALS = {"x", "y", "z"};
+    private static final String[] OPERATORS = {"+", "-", "&", "|"};
+    private static final String[] COMPARISONS = {"<", ">", "="};
+
+    private final int classes;
+    private final int subroutines;
+    private final int statements;
+    private final int depth;
+    private final long seed;
+    private Random random;
+
+    public JackGenerator(int classes, int subroutines, int statements, int depth, long seed) {
+        if (classes < 1) throw new IllegalArgumentException(STR."A program needs at least one class, not \{classes}.");
+        if (subroutines < 1) throw new IllegalArgumentException(STR."A class needs at least one function, not \{subroutines}.");
+        if (statements < 0) throw new IllegalArgumentException(STR."A function cannot have a negative number of statements: \{statements}.");
+        if (depth < 0) throw new IllegalArgumentException(STR."An expression cannot have a negative depth: \{depth}.");
+        this.classes = classes;
+        this.subroutines = subroutines;
+        this.statements = statements;
+        this.depth = depth;
+        this.seed = seed;
+    }
+
+    public int classes() {
+        return classes;
+    }
+
+    public static String className(int c) {
+        return STR."C\{c}";
+    }
+
+    // The source lines of class c.
+    public List<String> generate(int c) {
+        random = new Random(seed * 1_000_003 + c);
+        List<String> lines = new ArrayList<>();
+        lines.add(STR."class \{className(c)} {");
+        lines.add("    static int s;");
+        for (int f = 0; f < subroutines; f++) {
+            lines.add(STR."    function int f\{f}(int a, int b) {");
+            lines.add("        var int x, y, z;");
+            for (int s = 0; s < statements; s++) statement(lines);
+            lines.add(STR."        return \{expression(depth)};");
+            lines.add("    }");
+        }
+        lines.add("}");
+        return lines;
+    }
+
+    private void statement(List<String> lines) {
+        int kind = random.nextInt(20);
+        if (kind < 10) {
+            lines.add(STR."        let \{variable()} = \{expression(depth)};");
+        }
+        else if (kind < 13) {
+            lines.add(STR."        if (\{condition()}) {");
+            lines.add(STR."            let \{local()} = \{expression(depth)};");
+            lines.add("        }");
+            lines.add("        else {");
+            lines.add(STR."            let \{local()} = \{expression(depth)};");
+            lines.add("        }");
+        }
+        else if (kind < 16) {
+            String counter = local();
+            lines.add(STR."        while (\{condition()}) {");
+            lines.add(STR."            let \{counter} = \{counter} - 1;");
+            lines.add("        }");
+        }
+        else {
+            lines.add(STR."        do \{call(depth)};");
+        }
+    }
+
+    private String condition() {
+        String test = STR."\{expression(depth)} \{pick(COMPARISONS)} \{expression(depth)}";
+        return random.nextBoolean() ? test : STR."~(\{test})";
+    }
+
+    // A full tree of binary operations d deep, with a call now and then in place of one side.
+    private String expression(int d) {
+        if (d == 0) return term();
+        if (random.nextInt(8) == 0) return call(d - 1);
+        return STR."(\{expression(d - 1)} \{pick(OPERATORS)} \{expression(d - 1)})";
+    }
+
+    private String call(int d) {
+        return STR."\{className(random.nextInt(classes))}.f\{random.nextInt(subroutines)}(\{expression(d)}, \{term()})";
+    }
+
+    private String term() {
+        return switch (random.nextInt(6)) {
+            case 0, 1 -> String.valueOf(random.nextInt(1000));
+            case 2 -> STR."-\{local()}";
+            case 3 -> random.nextBoolean() ? "a" : "b";
+            case 4 -> "s";
+            default -> local();
+        };
+    }
+
+    private String variable() {
+        return random.nextInt(4) == 0 ? "s" : local();
+    }
+
+    private String local() {
+        return pick(LOCALS);
+    }
+
+    private String pick(String[] choices) {
+        return choices[random.nextInt(choices.length)];
+    }
+}
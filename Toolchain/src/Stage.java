@@ -0,0 +1,48 @@
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class Stage {
+    // Every module is written in the default package and they share class names (Parser, SymbolTable),
+    // so each one gets its own class loader. Entry points only take JDK types, which come from the
+    // platform loader and are therefore the same classes on both sides.
+    private final Class<?> entry;
+
+    private Stage(Class<?> entry) {
+        this.entry = entry;
+    }
+
+    public static Stage load(Path classes, String module) throws IOException {
+        Path dir = classes.resolve(module);
+        if (!Files.isDirectory(dir)) {
+            throw new IllegalArgumentException(STR."No compiled classes for \{module} in \{classes}.");
+        }
+        URLClassLoader loader = new URLClassLoader(module, new URL[] {dir.toUri().toURL()}, ClassLoader.getPlatformClassLoader());
+        try {
+            return new Stage(loader.loadClass(module));
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException(STR."\{dir} does not contain \{module}.class.");
+        }
+    }
+
+    // Calls a public static method of the module's main class. Exceptions thrown by the stage are rethrown as they are.
+    public Object call(String name, Class<?>[] parameters, Object... args) throws IOException {
+        try {
+            Method method = entry.getMethod(name, parameters);
+            return method.invoke(null, args);
+        } catch (InvocationTargetException e) {
+            switch (e.getCause()) {
+                case IOException io -> throw io;
+                case RuntimeException r -> throw r;
+                case Error err -> throw err;
+                default -> throw new RuntimeException(e.getCause());
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException(STR."\{entry.getName()}.\{name} is not available.", e);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class Toolchain {
+    private static final String USAGE = """
+            usage: Toolchain [--classes dir] [--keep] [--jobs n] [--vm option]... [compiler options] directory
+                   Toolchain --serve socket [--classes dir] [--keep] [--jobs n] [--vm option]... [compiler options] [directory...]
+                   Toolchain --connect socket (directory | --stop)
+              --classes dir     directory holding the compiled modules, one subdirectory each
+                                (default: the toolchain.classes property, then out/production)
+              --keep            also write the .vm files and directory.asm
+              --jobs n          number of classes compiled at the same time
+              --vm option       pass option to VMTranslator, for example --vm --static-frames
+              --serve socket    stay running, rebuild watched directories when their sources change,
+                                and answer build requests on the Unix domain socket
+              --connect socket  ask a running toolchain to build a directory and print its answer
+            Any other option is passed to JackAnalyzer.""";
+    private static final int CAPACITY = 16;
+
+    private final Stage compiler;
+    private final Stage translator;
+    private final Stage assembler;
+    private final boolean keep;
+    private final int jobs;
+    private final String[] compilerFlags;
+    private final String[] translatorFlags;
+
+    public Toolchain(Path classes, boolean keep, int jobs, String[] compilerFlags, String[] translatorFlags) throws IOException {
+        compiler = Stage.load(classes, "JackAnalyzer");
+        translator = Stage.load(classes, "VMTranslator");
+        assembler = Stage.load(classes, "Assembler");
+        this.keep = keep;
+        this.jobs = jobs;
+        this.compilerFlags = compilerFlags;
+        this.translatorFlags = translatorFlags;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path classes = Path.of(System.getProperty("toolchain.classes", "out/production"));
+        boolean keep = false;
+        int jobs = Runtime.getRuntime().availableProcessors();
+        Path serve = null;
+        Path connect = null;
+        List<String> flags = new ArrayList<>();
+        List<String> vmFlags = new ArrayList<>();
+        List<Path> dirs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--classes" -> classes = Path.of(value(args, ++i));
+                case "--keep" -> keep = true;
+                case "--jobs" -> jobs = Integer.parseInt(value(args, ++i));
+                case "--serve" -> serve = Path.of(value(args, ++i));
+                case "--connect" -> connect = Path.of(value(args, ++i));
+                case "--vm" -> vmFlags.add(value(args, ++i));
+                default -> {
+                    if (arg.startsWith("-")) flags.add(arg);
+                    else if (Files.isDirectory(Path.of(arg))) dirs.add(Path.of(arg));
+                    else throw new IllegalArgumentException(USAGE);
+                }
+            }
+        }
+
+        if (connect != null) {
+            // The client never loads the stages, so it starts as fast as the JVM does.
+            boolean stop = flags.remove("--stop");
+            if (!flags.isEmpty() || dirs.size() != (stop ? 0 : 1)) throw new IllegalArgumentException(USAGE);
+            String answer = Daemon.request(connect, stop ? "stop" : STR."build \{dirs.getFirst().toAbsolutePath().normalize()}");
+            System.out.println(answer);
+            if (answer.startsWith("error")) System.exit(1);
+            return;
+        }
+        Toolchain toolchain = new Toolchain(classes, keep, jobs, flags.toArray(new String[0]), vmFlags.toArray(new String[0]));
+        if (serve != null) {
+            Daemon daemon = new Daemon(toolchain);
+            for (Path dir : dirs) daemon.watch(dir);
+            daemon.serve(serve);
+        }
+        else {
+            if (dirs.size() != 1) throw new IllegalArgumentException(USAGE);
+            toolchain.build(dirs.getFirst());
+        }
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length) throw new IllegalArgumentException(USAGE);
+        return args[i];
+    }
+
+    // Builds dir.hack from the sources in dir. Classes are compiled in file name order, several at a time,
+    // and each one is sent on when its turn comes. A .vm file without a .jack source next to it
+    // (the OS, for example) is sent as it is.
+    public void build(Path dir) throws IOException {
+        List<Path> worklist = sources(dir);
+        link(dir, vm -> {
+            try (ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(jobs, worklist.size())))) {
+                List<Future<List<String>>> results = new ArrayList<>();
+                for (Path p : worklist) {
+                    results.add(pool.submit(() -> compile(p)));
+                }
+                for (int i = 0; i < worklist.size(); i++) {
+                    vm.send(Map.entry(className(worklist.get(i)), await(results.get(i))));
+                }
+            }
+        });
+    }
+
+    // The files of dir that are inputs to the build, in file name order.
+    public static List<Path> sources(Path dir) throws IOException {
+        try (Stream<Path> stream = Files.list(dir)) {
+            return stream.filter(Toolchain::isSource).sorted().toList();
+        }
+    }
+
+    public static boolean isSource(Path p) {
+        String file = p.getFileName().toString();
+        return file.endsWith(".jack") || file.endsWith(".vm") && !Files.exists(p.resolveSibling(file.replace(".vm", ".jack")));
+    }
+
+    public static String className(Path source) {
+        return source.getFileName().toString().replaceAll("\\.(jack|vm)$", "");
+    }
+
+    // Returns the VM commands of one class, compiling it if it is a .jack source.
+    public List<String> compile(Path source) throws IOException {
+        if (source.toString().endsWith(".vm")) return Files.readAllLines(source);
+        @SuppressWarnings("unchecked")
+        List<String> lines = (List<String>) compiler.call("compileToLines", new Class<?>[] {Path.class, String[].class}, source, compilerFlags);
+        if (keep) Files.write(source.resolveSibling(source.getFileName().toString().replace(".jack", ".vm")), lines);
+        return lines;
+    }
+
+    public interface Producer {
+        // Sends the VM commands of every class, by class name. The channel is closed by the caller.
+        void produce(Channel<Map.Entry<String, List<String>>> vm) throws Exception;
+    }
+
+    // Runs producer, the VM translator and the assembler in this JVM, each on its own thread.
+    // A class goes to the translator as soon as it is produced, and its assembly to the assembler
+    // as soon as it is translated, so nothing goes through the disk unless --keep is given.
+    // Returns the path of the .hack file, which is written next to dir once every stage has succeeded.
+    public Path link(Path dir, Producer producer) throws IOException {
+        String name = dir.toAbsolutePath().normalize().getFileName().toString();
+        Path hack = dir.resolveSibling(STR."\{name}.hack");
+        Path asm = dir.resolveSibling(STR."\{name}.asm");
+        // The last good .hack stays until this build has gone through every stage, and is then replaced at once.
+        Path partial = Files.createTempFile(hack.toAbsolutePath().getParent(), name, ".hack.tmp");
+        Writer output = new FileWriter(partial.toFile());
+
+        Channel<Map.Entry<String, List<String>>> vm = new Channel<>(CAPACITY);
+        Channel<List<String>> assembly = new Channel<>(CAPACITY);
+        ExecutorService stages = Executors.newFixedThreadPool(3);
+        ExecutorCompletionService<Void> done = new ExecutorCompletionService<>(stages);
+        try {
+            done.submit(run(() -> {
+                producer.produce(vm);
+                vm.close();
+            }));
+            done.submit(run(() -> {
+                Writer keepAsm = keep ? new BufferedWriter(new FileWriter(asm.toFile())) : null;
+                try {
+                    Consumer<List<String>> sink = lines -> {
+                        if (keepAsm != null) write(keepAsm, lines);
+                        assembly.send(lines);
+                    };
+                    translator.call("translate", new Class<?>[] {Iterator.class, Consumer.class, String[].class}, vm.iterator(), sink, translatorFlags);
+                } finally {
+                    if (keepAsm != null) keepAsm.close();
+                }
+                assembly.close();
+            }));
+            done.submit(run(() -> {
+                Iterator<String> lines = StreamSupport.stream(Spliterators.spliteratorUnknownSize(assembly.iterator(), 0), false)
+                        .flatMap(List::stream).iterator();
+                try (output) {
+                    assembler.call("assemble", new Class<?>[] {Iterator.class, Writer.class}, lines, output);
+                }
+            }));
+            for (int i = 0; i < 3; i++) {
+                await(done.take());
+            }
+            Files.move(partial, hack, StandardCopyOption.ATOMIC_MOVE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Build interrupted.");
+        } finally {
+            // A failed stage would leave the others blocked on their channels.
+            stages.shutdownNow();
+            output.close();
+            Files.deleteIfExists(partial);
+        }
+        return hack;
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private static Callable<Void> run(Task task) {
+        return () -> {
+            task.run();
+            return null;
+        };
+    }
+
+    private static <T> T await(Future<T> result) throws IOException, InterruptedException {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            switch (e.getCause()) {
+                case IOException io -> throw io;
+                case RuntimeException r -> throw r;
+                case Error err -> throw err;
+                default -> throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    private static void write(Writer writer, List<String> lines) {
+        try {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -1,19 +1,66 @@
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.Objects;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
 
 public class CodeWriter {
-    private final FileWriter writer;
+    private final Writer writer;
     private final BufferedWriter bw;
     private int loopCounter;
     private String fileName;
     private String funcName;
     private int retCounter;
+    // Numbers the CALL labels, which are never reset, so they stay unique across functions and inlined bodies.
+    private int callCounter;
+    // Null unless the whole program was analyzed before translation.
+    private final ProgramAnalysis analysis;
+    // OS functions whose calls are replaced by Hack code that does the same, see writeIntrinsic.
+    public static final List<String> INTRINSICS = List.of("Memory.peek", "Memory.poke", "Math.multiply", "Math.abs", "Math.min", "Math.max");
+    private Set<String> intrinsics = Set.of();
+    // Null unless --rom-report counts the instructions.
+    private final RomReport report;
+    // Whether the shared multiply routine has to be written at the end.
+    private boolean multiplyUsed;
+    // With a profile, functions that are not hot are written compact: their calls, returns and comparisons
+    // jump to routines written once at the end, which costs a few cycles each time to save ROM.
+    private Profile profile;
+    private boolean compact;
+    // The call and return routines written so far, by the registers they save and restore.
+    private final Set<List<Integer>> callsUsed = new LinkedHashSet<>();
+    private final Set<List<Integer>> returnsUsed = new LinkedHashSet<>();
+    private final Set<String> comparisonsUsed = new TreeSet<>();
+    // While the body of a function is written in place of a call to it: the prefix of its labels,
+    // and the function and file it is written into.
+    private String inlineScope;
+    private String callerName;
+    private String callerFile;
+    // THIS and THAT, if the inlined function sets them, are kept on the stack under its result.
+    private List<Integer> inlineSaved;
 
     public CodeWriter(String output) throws IOException {
-        writer = new FileWriter(STR."\{output}.asm");
-        bw = new BufferedWriter(writer);
+        this(new FileWriter(STR."\{output}.asm"), null);
+    }
+
+    public CodeWriter(Writer output) throws IOException {
+        this(output, null);
+    }
+
+    public CodeWriter(Writer output, ProgramAnalysis analysis) throws IOException {
+        this(output, analysis, null);
+    }
+
+    public CodeWriter(Writer output, ProgramAnalysis analysis, RomReport report) throws IOException {
+        writer = output;
+        this.analysis = analysis;
+        this.report = report;
+        bw = report == null ? new BufferedWriter(writer) : report.counting(writer);
+        kind("bootstrap");
         bw.write("@256"); bw.newLine();
         bw.write("D=A"); bw.newLine(); // D = 256
         bw.write("@0"); bw.newLine(); // Select SP
@@ -21,6 +68,13 @@ public class CodeWriter {
         writeCall("Sys.init", 0);
     }
 
+    // Tells the RomReport what the instructions written next are for. Inlined bodies count as inline in the caller.
+    private void kind(String kind) {
+        if (report == null) return;
+        if (inlineScope != null) report.at(callerName, "inline");
+        else report.at(funcName == null ? "bootstrap" : funcName, kind);
+    }
+
     private void popDFromSP() throws IOException {
         bw.write("@0"); // Select SP
         bw.newLine();
@@ -94,9 +148,23 @@ public class CodeWriter {
     }
 
     public void writeArithmetic(String command) throws IOException {
+        kind(command);
         bw.write(STR."// \{command}"); bw.newLine();
         // Single variable operation doesn't need push and pop.
         if (Objects.equals(command, "neg") || Objects.equals(command, "not")) changeLastOnStack(command);
+        else if (compact && (command.equals("eq") || command.equals("gt") || command.equals("lt"))) {
+            // R13 = the return address, then the shared routine compares
+            bw.write(STR."@END\{loopCounter}"); bw.newLine();
+            bw.write("D=A"); bw.newLine();
+            bw.write("@13"); bw.newLine();
+            bw.write("M=D"); bw.newLine();
+            bw.write(STR."@VM.\{command}"); bw.newLine();
+            writeCallSite();
+            bw.write("0;JMP"); bw.newLine();
+            bw.write(STR."(END\{loopCounter})"); bw.newLine();
+            loopCounter++;
+            comparisonsUsed.add(command);
+        }
         // Double variables operation
         else {
             popDFromSP();
@@ -128,6 +196,7 @@ public class CodeWriter {
     }
 
     public void writePushPop(String command, String segment, int index) throws IOException {
+        kind(STR."\{command} \{segment}");
         // Write comments
         bw.write(STR."// \{command} \{segment} \{index}"); bw.newLine();
 
@@ -139,6 +208,22 @@ public class CodeWriter {
             return;
         }
 
+        // Arguments and locals in a static frame have a fixed address.
+        int address = analysis == null ? -1 : analysis.address(funcName, segment, index);
+        if (address != -1) {
+            if (command.equals("push")) {
+                bw.write(STR."@\{address}"); bw.newLine();
+                bw.write("D=M"); bw.newLine();
+                pushDtoStack();
+            }
+            else {
+                popDFromSP();
+                bw.write(STR."@\{address}"); bw.newLine();
+                bw.write("M=D"); bw.newLine();
+            }
+            return;
+        }
+
         // Fetch Address to A.
         switch(segment) {
             case "sp" -> fetchAddress(segment, 0);
@@ -161,33 +246,195 @@ public class CodeWriter {
         }
     }
 
+    // Sequences for the idioms Fuser recognizes. Each replaces a run of commands and leaves the stack as they would.
+
+    public void writeComment(String text) throws IOException {
+        bw.write(STR."// \{text}"); bw.newLine();
+    }
+
+    private static int register(String segment) {
+        return switch (segment) {
+            case "local" -> 1;
+            case "argument" -> 2;
+            case "this" -> 3;
+            case "that" -> 4;
+            default -> -1;
+        };
+    }
+
+    // Whether selectSlot can select segment[index] without using D.
+    private boolean isDirect(String segment, int index) {
+        return register(segment) == -1 || index <= 2
+                || (analysis != null && analysis.address(funcName, segment, index) != -1);
+    }
+
+    // Sets A to the address of segment[index], using D unless isDirect.
+    private void selectSlot(String segment, int index) throws IOException {
+        int address = analysis == null ? -1 : analysis.address(funcName, segment, index);
+        if (address != -1) {
+            bw.write(STR."@\{address}"); bw.newLine();
+        }
+        else if (register(segment) == -1) fetchStaticAddress(segment, index);
+        else if (index <= 2) {
+            bw.write(STR."@\{register(segment)}"); bw.newLine();
+            bw.write(index == 0 ? "A=M" : "A=M+1"); bw.newLine();
+            if (index == 2) {
+                bw.write("A=A+1"); bw.newLine();
+            }
+        }
+        else fetchAddress(segment, index);
+    }
+
+    // Sets D to segment[index], or to index for the constant segment.
+    private void readSlot(String segment, int index) throws IOException {
+        if (segment.equals("constant")) {
+            bw.write(STR."@\{index}"); bw.newLine();
+            bw.write("D=A"); bw.newLine();
+            return;
+        }
+        selectSlot(segment, index);
+        bw.write("D=M"); bw.newLine();
+    }
+
+    // Keeps the address of segment[index] in R13 for slots that need D to be selected.
+    private void saveSlot(String segment, int index) throws IOException {
+        fetchAddress(segment, index);
+        bw.write("D=A"); bw.newLine();
+        bw.write("@13"); bw.newLine();
+        bw.write("M=D"); bw.newLine();
+    }
+
+    // segment[index] += delta, in place.
+    public void writeIncrement(String segment, int index, int delta) throws IOException {
+        kind("increment");
+        String op = delta < 0 ? "-" : "+";
+        if (Math.abs(delta) == 1) {
+            selectSlot(segment, index);
+            bw.write(STR."M=M\{op}1"); bw.newLine();
+            return;
+        }
+        boolean direct = isDirect(segment, index);
+        if (!direct) saveSlot(segment, index);
+        bw.write(STR."@\{Math.abs(delta)}"); bw.newLine();
+        bw.write("D=A"); bw.newLine();
+        if (direct) selectSlot(segment, index);
+        else {
+            bw.write("@13"); bw.newLine();
+            bw.write("A=M"); bw.newLine();
+        }
+        bw.write(STR."M=M\{op}D"); bw.newLine();
+    }
+
+    // The word on top of the stack += delta.
+    public void writeAddConstant(int delta) throws IOException {
+        kind("add-constant");
+        String op = delta < 0 ? "-" : "+";
+        if (Math.abs(delta) > 1) {
+            bw.write(STR."@\{Math.abs(delta)}"); bw.newLine();
+            bw.write("D=A"); bw.newLine();
+        }
+        bw.write("@0"); bw.newLine();
+        bw.write("A=M-1"); bw.newLine();
+        if (delta != 0) {
+            bw.write(Math.abs(delta) == 1 ? STR."M=M\{op}1" : STR."M=M\{op}D"); bw.newLine();
+        }
+    }
+
+    // to[toIndex] = from[fromIndex], without going through the stack.
+    public void writeMove(String from, int fromIndex, String to, int toIndex) throws IOException {
+        kind("move");
+        if (from.equals(to) && fromIndex == toIndex) return;
+        boolean direct = isDirect(to, toIndex);
+        if (!direct) saveSlot(to, toIndex);
+        readSlot(from, fromIndex);
+        if (direct) selectSlot(to, toIndex);
+        else {
+            bw.write("@13"); bw.newLine();
+            bw.write("A=M"); bw.newLine();
+        }
+        bw.write("M=D"); bw.newLine();
+    }
+
+    // Pops y, or takes it from constant when that is not null, then pops x and jumps to label
+    // if x <comparison> y holds, or if it does not when negated.
+    public void writeCompareIf(String comparison, boolean negated, Integer constant, String label) throws IOException {
+        kind("compare-branch");
+        if (constant == null) popDFromSP();
+        bw.write("@0"); bw.newLine();
+        bw.write("AM=M-1"); bw.newLine();
+        if (constant == null) {
+            bw.write("D=M-D"); bw.newLine();
+        }
+        else {
+            bw.write("D=M"); bw.newLine();
+            bw.write(STR."@\{constant}"); bw.newLine();
+            bw.write("D=D-A"); bw.newLine();
+        }
+        String jump = switch (comparison) {
+            case "lt" -> negated ? "JGE" : "JLT";
+            case "gt" -> negated ? "JLE" : "JGT";
+            default -> negated ? "JNE" : "JEQ";
+        };
+        bw.write(STR."@\{label(label)}"); bw.newLine();
+        bw.write(STR."D;\{jump}"); bw.newLine();
+    }
+
+    // if-goto label after not: pops and jumps unless the value was true. The not is bitwise,
+    // so only -1 counts as true here, not every value other than 0.
+    public void writeIfNot(String label) throws IOException {
+        kind("not-branch");
+        popDFromSP();
+        bw.write("D=D+1"); bw.newLine();
+        bw.write(STR."@\{label(label)}"); bw.newLine();
+        bw.write("D;JNE"); bw.newLine();
+    }
+
     public void setFileName(String f) {
         fileName = f;
     }
 
+    // The assembly label of a VM label, which is local to the function it is in.
+    private String label(String label) {
+        return STR."\{inlineScope != null ? inlineScope : funcName}$\{label}";
+    }
+
     public void writeLabel(String label) throws IOException {
+        kind("label");
         bw.write(STR."// label \{label}"); bw.newLine();
-        bw.write(STR."(\{funcName}$\{label})"); bw.newLine();
+        bw.write(STR."(\{label(label)})"); bw.newLine();
     }
 
     public void writeGoto(String label) throws IOException {
+        kind("goto");
         bw.write(STR."// goto \{label}"); bw.newLine();
-        bw.write(STR."@\{funcName}$\{label}"); bw.newLine();
+        bw.write(STR."@\{label(label)}"); bw.newLine();
         bw.write("0;JMP"); bw.newLine();
     }
 
     public void writeIf(String label) throws IOException {
+        kind("if-goto");
         bw.write(STR."// if-goto \{label}"); bw.newLine();
         popDFromSP();
-        bw.write(STR."@\{funcName}$\{label}"); bw.newLine();
+        bw.write(STR."@\{label(label)}"); bw.newLine();
         bw.write("D;JNE"); bw.newLine();
     }
 
     public void writeFunction(String functionName, int nVars) throws IOException {
         funcName = functionName;
         retCounter = 0;
+        compact = profile != null && !profile.isHot(functionName);
+        kind("function");
         bw.write(STR."// label \{functionName}"); bw.newLine();
         bw.write(STR."(\{functionName})"); bw.newLine();
+        int frameLocal = analysis == null ? -1 : analysis.address(functionName, "local", 0);
+        if (frameLocal != -1) {
+            // Locals in a static frame still start out as 0.
+            for (int i = 0; i < nVars; i++) {
+                bw.write(STR."@\{frameLocal + i}"); bw.newLine();
+                bw.write("M=0"); bw.newLine();
+            }
+            return;
+        }
         int i = 0;
         while (i < nVars) {
             bw.write("@0"); bw.newLine();
@@ -197,54 +444,390 @@ public class CodeWriter {
         }
     }
 
+    public void setIntrinsics(Set<String> names) {
+        intrinsics = names;
+    }
+
+    public void setProfile(Profile profile) {
+        this.profile = profile;
+    }
+
+    private boolean isIntrinsic(String functionName, int nArgs) {
+        if (!intrinsics.contains(functionName)) return false;
+        return nArgs == switch (functionName) {
+            case "Memory.peek", "Math.abs" -> 1;
+            default -> 2;
+        };
+    }
+
+    // The call without a frame. The results are the OS's for every input, including overflow:
+    // multiply keeps the low 16 bits of the product, and abs(-32768) stays -32768.
+    private void writeIntrinsic(String functionName) throws IOException {
+        switch (functionName) {
+            case "Memory.peek" -> {
+                bw.write("@0"); bw.newLine();
+                bw.write("A=M-1"); bw.newLine();
+                bw.write("A=M"); bw.newLine();
+                bw.write("D=M"); bw.newLine();
+                bw.write("@0"); bw.newLine();
+                bw.write("A=M-1"); bw.newLine();
+                bw.write("M=D"); bw.newLine();
+            }
+            case "Memory.poke" -> {
+                popDFromSP();
+                bw.write("@0"); bw.newLine();
+                bw.write("A=M-1"); bw.newLine();
+                bw.write("A=M"); bw.newLine();
+                bw.write("M=D"); bw.newLine();
+                // The void function's return value
+                bw.write("@0"); bw.newLine();
+                bw.write("A=M-1"); bw.newLine();
+                bw.write("M=0"); bw.newLine();
+            }
+            case "Math.abs" -> {
+                bw.write("@0"); bw.newLine();
+                bw.write("A=M-1"); bw.newLine();
+                bw.write("D=M"); bw.newLine();
+                bw.write(STR."@END\{loopCounter}"); bw.newLine();
+                bw.write("D;JGE"); bw.newLine();
+                bw.write("@0"); bw.newLine();
+                bw.write("A=M-1"); bw.newLine();
+                bw.write("M=-D"); bw.newLine();
+                bw.write(STR."(END\{loopCounter})"); bw.newLine();
+                loopCounter++;
+            }
+            case "Math.min", "Math.max" -> {
+                // Keep a if a < b (min) or a > b (max), else replace it with b.
+                bw.write("@0"); bw.newLine();
+                bw.write("AM=M-1"); bw.newLine();
+                bw.write("D=M"); bw.newLine();
+                bw.write("A=A-1"); bw.newLine();
+                bw.write("D=M-D"); bw.newLine();
+                bw.write(STR."@END\{loopCounter}"); bw.newLine();
+                bw.write(functionName.equals("Math.min") ? "D;JLT" : "D;JGT"); bw.newLine();
+                bw.write("@0"); bw.newLine();
+                bw.write("A=M"); bw.newLine();
+                bw.write("D=M"); bw.newLine();
+                bw.write("A=A-1"); bw.newLine();
+                bw.write("M=D"); bw.newLine();
+                bw.write(STR."(END\{loopCounter})"); bw.newLine();
+                loopCounter++;
+            }
+            case "Math.multiply" -> {
+                // R14 = y, R13 = x, and the return address where x was. The routine leaves the product there.
+                popDFromSP();
+                bw.write("@14"); bw.newLine();
+                bw.write("M=D"); bw.newLine();
+                popDFromSP();
+                bw.write("@13"); bw.newLine();
+                bw.write("M=D"); bw.newLine();
+                bw.write(STR."@\{funcName}$ret.\{retCounter}"); bw.newLine();
+                bw.write("D=A"); bw.newLine();
+                bw.write("@0"); bw.newLine();
+                bw.write("A=M"); bw.newLine();
+                bw.write("M=D"); bw.newLine();
+                bw.write("@VM.multiply"); bw.newLine();
+                writeCallSite();
+                bw.write("0;JMP"); bw.newLine();
+                bw.write(STR."(\{funcName}$ret.\{retCounter})"); bw.newLine();
+                retCounter++;
+                multiplyUsed = true;
+            }
+            default -> throw new IllegalArgumentException(STR."No intrinsic for \{functionName}.");
+        }
+    }
+
+    // Shift-and-add over the 16 bits of y, unrolled, shared by every call site. Only the return
+    // address is on the stack, so it is a few hundred cycles instead of a call into the OS loop.
+    private void writeMultiplyRoutine() throws IOException {
+        bw.write("// Math.multiply intrinsic"); bw.newLine();
+        bw.write("(VM.multiply)"); bw.newLine();
+        bw.write("@15"); bw.newLine();
+        bw.write("M=0"); bw.newLine(); // R15 = sum
+        for (int bit = 0; bit < 16; bit++) {
+            bw.write("@14"); bw.newLine();
+            bw.write("D=M"); bw.newLine();
+            // The top bit is the sign, which A cannot hold as a constant.
+            if (bit < 15) {
+                bw.write(STR."@\{1 << bit}"); bw.newLine();
+                bw.write("D=D&A"); bw.newLine();
+            }
+            bw.write(STR."@VM.multiply$\{bit}"); bw.newLine();
+            bw.write(bit < 15 ? "D;JEQ" : "D;JGE"); bw.newLine();
+            bw.write("@13"); bw.newLine();
+            bw.write("D=M"); bw.newLine();
+            bw.write("@15"); bw.newLine();
+            bw.write("M=M+D"); bw.newLine();
+            bw.write(STR."(VM.multiply$\{bit})"); bw.newLine();
+            if (bit < 15) {
+                bw.write("@13"); bw.newLine();
+                bw.write("D=M"); bw.newLine();
+                bw.write("M=D+M"); bw.newLine();
+            }
+        }
+        // R13 = return address, then replace it with the product
+        bw.write("@0"); bw.newLine();
+        bw.write("A=M"); bw.newLine();
+        bw.write("D=M"); bw.newLine();
+        bw.write("@13"); bw.newLine();
+        bw.write("M=D"); bw.newLine();
+        bw.write("@15"); bw.newLine();
+        bw.write("D=M"); bw.newLine();
+        bw.write("@0"); bw.newLine();
+        bw.write("A=M"); bw.newLine();
+        bw.write("M=D"); bw.newLine();
+        bw.write("@0"); bw.newLine();
+        bw.write("M=M+1"); bw.newLine();
+        bw.write("@13"); bw.newLine();
+        bw.write("A=M"); bw.newLine();
+        bw.write("0;JMP"); bw.newLine();
+    }
+
     public void writeCall(String functionName, int nArgs) throws IOException {
+        kind(isIntrinsic(functionName, nArgs) ? "intrinsic" : "call");
         bw.write(STR."// call \{functionName}"); bw.newLine();
-        // push retAddr, LCL, ARG, THIS, THAT
+        if (isIntrinsic(functionName, nArgs)) {
+            writeIntrinsic(functionName);
+            return;
+        }
+        int frameArgument = analysis == null ? -1 : analysis.address(functionName, "argument", 0);
+        if (frameArgument != -1) {
+            popArguments(frameArgument, nArgs);
+            nArgs = 0;
+        }
+        List<Integer> saved = saved(functionName);
+        if (compact) {
+            // R13 = nArgs, R14 = f, D = retAddr, then the shared routine builds the frame
+            bw.write(STR."@\{nArgs}"); bw.newLine();
+            bw.write("D=A"); bw.newLine();
+            bw.write("@13"); bw.newLine();
+            bw.write("M=D"); bw.newLine();
+            bw.write(STR."@\{functionName}"); bw.newLine();
+            bw.write("D=A"); bw.newLine();
+            bw.write("@14"); bw.newLine();
+            bw.write("M=D"); bw.newLine();
+            bw.write(STR."@\{funcName}$ret.\{retCounter}"); bw.newLine();
+            bw.write("D=A"); bw.newLine();
+            bw.write(STR."@\{routine("call", saved)}"); bw.newLine();
+            writeCallSite();
+            bw.write("0;JMP"); bw.newLine();
+            bw.write(STR."(\{funcName}$ret.\{retCounter})"); bw.newLine();
+            retCounter++;
+            callsUsed.add(saved);
+            return;
+        }
+        // push retAddr, then the saved registers
         bw.write(STR."@\{funcName}$ret.\{retCounter}"); bw.newLine();
         bw.write("D=A"); bw.newLine();
         pushDtoStack();
-        bw.write("@1"); bw.newLine();
-        bw.write("D=M"); bw.newLine();
-        pushDtoStack();
-        bw.write("@2"); bw.newLine();
-        bw.write("D=M"); bw.newLine();
-        pushDtoStack();
-        bw.write("@3"); bw.newLine();
-        bw.write("D=M"); bw.newLine();
-        pushDtoStack();
-        bw.write("@4"); bw.newLine();
-        bw.write("D=M"); bw.newLine();
-        pushDtoStack();
-        // ARG = SP-5-nArgs;
+        for (int register : saved) {
+            bw.write(STR."@\{register}"); bw.newLine();
+            bw.write("D=M"); bw.newLine();
+            pushDtoStack();
+        }
+        // ARG = SP-(1+saved)-nArgs;
         bw.write("@0"); bw.newLine();
         bw.write("D=M"); bw.newLine();
-        bw.write(STR."@\{5+nArgs}"); bw.newLine();
+        bw.write(STR."@\{1+saved.size()+nArgs}"); bw.newLine();
         bw.write("D=D-A"); bw.newLine();
         bw.write("@2"); bw.newLine();
         bw.write("M=D"); bw.newLine();
-        // LCL = SP
-        bw.write("@0"); bw.newLine();
-        bw.write("D=M"); bw.newLine();
-        bw.write("@1"); bw.newLine();
-        bw.write("M=D"); bw.newLine();
+        if (saved.contains(ProgramAnalysis.LCL)) {
+            // LCL = SP
+            bw.write("@0"); bw.newLine();
+            bw.write("D=M"); bw.newLine();
+            bw.write("@1"); bw.newLine();
+            bw.write("M=D"); bw.newLine();
+        }
         // goto f
         bw.write(STR."@\{functionName}"); bw.newLine();
+        writeCallSite();
         bw.write("0;JMP"); bw.newLine();
         // (retAddr)
         bw.write(STR."(\{funcName}$ret.\{retCounter})");
         retCounter++;
     }
 
+    // Labels the jump written next as the jump of a call, into a function or a shared routine. HackSimulator
+    // --profile only counts a jump to the first instruction of a function as a call when it comes from one of
+    // these, so a loop back to the top of a function is not taken for a recursive call. Labels take no ROM.
+    private void writeCallSite() throws IOException {
+        bw.write(STR."(CALL\{callCounter})"); bw.newLine();
+        callCounter++;
+    }
+
+    // The arguments on the stack go straight into a static frame, last one first.
+    private void popArguments(int frameArgument, int nArgs) throws IOException {
+        for (int i = nArgs - 1; i >= 0; i--) {
+            popDFromSP();
+            bw.write(STR."@\{frameArgument + i}"); bw.newLine();
+            bw.write("M=D"); bw.newLine();
+        }
+    }
+
+    // Starts writing the body of functionName in place of a call to it, for Inliner. The arguments go into its
+    // static frame and its locals are cleared, as for a call; its commands are then written as its own, with
+    // labels of their own, until endInline, and a return in the middle jumps to the end.
+    public void beginInline(String functionName, int nArgs) throws IOException {
+        kind("inline");
+        ProgramAnalysis.Function callee = analysis.function(functionName);
+        bw.write(STR."// inline \{functionName} \{nArgs}"); bw.newLine();
+        popArguments(callee.frame, nArgs);
+        for (int i = 0; i < callee.nVars; i++) {
+            bw.write(STR."@\{callee.frame + callee.arity() + i}"); bw.newLine();
+            bw.write("M=0"); bw.newLine();
+        }
+        inlineSaved = ProgramAnalysis.FULL_FRAME.stream()
+                .filter(r -> r == ProgramAnalysis.THIS ? callee.writesThis : r == ProgramAnalysis.THAT && callee.writesThat)
+                .toList();
+        for (int register : inlineSaved) {
+            bw.write(STR."@\{register}"); bw.newLine();
+            bw.write("D=M"); bw.newLine();
+            pushDtoStack();
+        }
+        inlineScope = STR."\{funcName}$inline.\{retCounter}";
+        retCounter++;
+        callerName = funcName;
+        callerFile = fileName;
+        funcName = functionName;
+        fileName = callee.fileName;
+    }
+
+    public void endInline() throws IOException {
+        bw.write(STR."(\{inlineScope}.end)"); bw.newLine();
+        if (!inlineSaved.isEmpty()) {
+            // R13 = the result, restore the registers under it, then push it back
+            popDFromSP();
+            bw.write("@13"); bw.newLine();
+            bw.write("M=D"); bw.newLine();
+            for (int register : inlineSaved.reversed()) {
+                popDFromSP();
+                bw.write(STR."@\{register}"); bw.newLine();
+                bw.write("M=D"); bw.newLine();
+            }
+            bw.write("@13"); bw.newLine();
+            bw.write("D=M"); bw.newLine();
+            pushDtoStack();
+        }
+        funcName = callerName;
+        fileName = callerFile;
+        inlineScope = null;
+    }
+
+    // The registers a call to function saves, and its return restores.
+    private List<Integer> saved(String function) {
+        ProgramAnalysis.Function f = analysis == null ? null : analysis.function(function);
+        return f == null ? ProgramAnalysis.FULL_FRAME : f.saved;
+    }
+
+    // call functionName nArgs; return, reusing the current frame: the arguments replace the current ones, the
+    // saved registers move down after them, and the callee returns straight to our caller. Needs the number
+    // of arguments our callers pass, and the callee has to save the same registers we do. A callee with more
+    // arguments than that would overwrite the saved registers before they are moved, so it is left alone.
+    // Returns false, having written nothing, if the call cannot reuse the frame.
+    public boolean writeTailCall(String functionName, int nArgs) throws IOException {
+        if (analysis == null || isIntrinsic(functionName, nArgs)) return false;
+        ProgramAnalysis.Function caller = analysis.function(funcName);
+        ProgramAnalysis.Function callee = analysis.function(functionName);
+        if (caller == null || callee == null || caller.frame != -1 || callee.frame != -1) return false;
+        int m = caller.callArity();
+        if (m < 0 || nArgs > m || !caller.saved.equals(callee.saved)) return false;
+        int frame = 1 + caller.saved.size();
+        kind("tail-call");
+
+        bw.write(STR."// tail call \{functionName} \{nArgs}"); bw.newLine();
+        // R13 = ARG-1, the word before the next one to fill
+        bw.write("@2"); bw.newLine();
+        bw.write("D=M-1"); bw.newLine();
+        bw.write("@13"); bw.newLine();
+        bw.write("M=D"); bw.newLine();
+        // ARG[i] = the i-th new argument, from SP-nArgs up
+        for (int i = 0; i < nArgs; i++) {
+            bw.write("@0"); bw.newLine();
+            bw.write("D=M"); bw.newLine();
+            bw.write(STR."@\{nArgs - i}"); bw.newLine();
+            bw.write("A=D-A"); bw.newLine();
+            bw.write("D=M"); bw.newLine();
+            bw.write("@13"); bw.newLine();
+            bw.write("AM=M+1"); bw.newLine();
+            bw.write("M=D"); bw.newLine();
+        }
+        // Move the return address and saved registers down from ARG+m to ARG+nArgs
+        if (nArgs < m) {
+            for (int i = 0; i < frame; i++) {
+                bw.write("@2"); bw.newLine();
+                bw.write("D=M"); bw.newLine();
+                bw.write(STR."@\{m + i}"); bw.newLine();
+                bw.write("A=D+A"); bw.newLine();
+                bw.write("D=M"); bw.newLine();
+                bw.write("@13"); bw.newLine();
+                bw.write("AM=M+1"); bw.newLine();
+                bw.write("M=D"); bw.newLine();
+            }
+        }
+        // SP = ARG+nArgs+frame
+        bw.write("@2"); bw.newLine();
+        bw.write("D=M"); bw.newLine();
+        bw.write(STR."@\{nArgs + frame}"); bw.newLine();
+        bw.write("D=D+A"); bw.newLine();
+        bw.write("@0"); bw.newLine();
+        bw.write("M=D"); bw.newLine();
+        if (callee.saved.contains(ProgramAnalysis.LCL)) {
+            // LCL = SP
+            bw.write("@1"); bw.newLine();
+            bw.write("M=D"); bw.newLine();
+        }
+        // goto f
+        bw.write(STR."@\{functionName}"); bw.newLine();
+        writeCallSite();
+        bw.write("0;JMP"); bw.newLine();
+        return true;
+    }
+
     public void writeReturn() throws IOException {
+        kind("return");
         bw.write(STR."// return from \{funcName}"); bw.newLine();
-        // frame = LCL
-        bw.write("@1"); bw.newLine();
-        bw.write("D=M"); bw.newLine(); // D = LCL
+        if (inlineScope != null) {
+            // The result is already where the call would have left it.
+            bw.write(STR."@\{inlineScope}.end"); bw.newLine();
+            bw.write("0;JMP"); bw.newLine();
+            return;
+        }
+        List<Integer> saved = saved(funcName);
+        // The shared routine finds the frame through LCL itself.
+        if (!compact || !saved.contains(ProgramAnalysis.LCL)) writeFrameAddress(saved);
+        if (compact) {
+            bw.write(STR."@\{routine("return", saved)}"); bw.newLine();
+            bw.write("0;JMP"); bw.newLine();
+            returnsUsed.add(saved);
+            return;
+        }
+        writeRestore(saved);
+    }
+
+    // D = the end of the frame, where the call left SP.
+    private void writeFrameAddress(List<Integer> saved) throws IOException {
+        if (saved.contains(ProgramAnalysis.LCL)) {
+            // frame = LCL
+            bw.write("@1"); bw.newLine();
+            bw.write("D=M"); bw.newLine(); // D = LCL
+        }
+        else {
+            // frame = ARG+nArgs+1+saved, where the call left SP
+            bw.write("@2"); bw.newLine();
+            bw.write("D=M"); bw.newLine(); // D = ARG
+            bw.write(STR."@\{analysis.function(funcName).callArity()+1+saved.size()}"); bw.newLine();
+            bw.write("D=D+A"); bw.newLine();
+        }
+    }
+
+    // Returns to the caller, given the end of the frame in D.
+    private void writeRestore(List<Integer> saved) throws IOException {
         bw.write("@13"); bw.newLine(); // Select R13
         bw.write("M=D"); bw.newLine(); // R13 = D
-        // retAddr = *(frame-5)
-        bw.write("@5"); bw.newLine(); // Select 5
-        bw.write("A=D-A"); bw.newLine(); // Select D-5
+        // retAddr = *(frame-(1+saved))
+        bw.write(STR."@\{1+saved.size()}"); bw.newLine();
+        bw.write("A=D-A"); bw.newLine(); // Select the return address
         bw.write("D=M"); bw.newLine(); // D = retAddr
         bw.write("@14"); bw.newLine();
         bw.write("M=D"); bw.newLine(); // R14 = D
@@ -258,41 +841,110 @@ public class CodeWriter {
         bw.write("D=M+1"); bw.newLine();
         bw.write("@0"); bw.newLine();
         bw.write("M=D"); bw.newLine();
-        // THAT = *(frame-1)
-        bw.write("@13"); bw.newLine();
-        bw.write("M=M-1"); bw.newLine();
+        // Restore the saved registers from the top of the frame down: THAT, THIS, ARG, LCL
+        for (int register : saved.reversed()) {
+            bw.write("@13"); bw.newLine();
+            bw.write("M=M-1"); bw.newLine();
+            bw.write("A=M"); bw.newLine();
+            bw.write("D=M"); bw.newLine();
+            bw.write(STR."@\{register}"); bw.newLine();
+            bw.write("M=D"); bw.newLine();
+        }
+        // goto retAddr
+        bw.write("@14"); bw.newLine();
         bw.write("A=M"); bw.newLine();
+        bw.write("0;JMP"); bw.newLine();
+    }
+
+    public void flush() throws IOException {
+        bw.flush();
+    }
+
+    // The shared routines of compact functions, one call and one return routine for each set of saved registers.
+    // call takes the return address in D, nArgs in R13 and the function in R14. return takes the end of the frame
+    // in D if LCL is not saved. The comparisons take the return address in R13. Like the multiply routine, they
+    // are labeled as functions of a class VM, so HackSimulator profiles them apart from the function before them.
+    private static String routine(String kind, List<Integer> saved) {
+        return STR."VM.\{kind}\{saved.stream().map(String::valueOf).collect(Collectors.joining())}";
+    }
+
+    private void writeCallRoutine(List<Integer> saved) throws IOException {
+        bw.write("// call routine"); bw.newLine();
+        bw.write(STR."(\{routine("call", saved)})"); bw.newLine();
+        pushDtoStack();
+        for (int register : saved) {
+            bw.write(STR."@\{register}"); bw.newLine();
+            bw.write("D=M"); bw.newLine();
+            pushDtoStack();
+        }
+        // ARG = SP-(1+saved)-nArgs
+        bw.write("@0"); bw.newLine();
         bw.write("D=M"); bw.newLine();
-        bw.write("@4"); bw.newLine();
-        bw.write("M=D"); bw.newLine();
-        // THIS = *(frame-2)
         bw.write("@13"); bw.newLine();
-        bw.write("M=M-1"); bw.newLine();
-        bw.write("A=M"); bw.newLine();
-        bw.write("D=M"); bw.newLine();
-        bw.write("@3"); bw.newLine();
-        bw.write("M=D"); bw.newLine();
-        // ARG = *(frame-3)
-        bw.write("@13"); bw.newLine();
-        bw.write("M=M-1"); bw.newLine();
-        bw.write("A=M"); bw.newLine();
-        bw.write("D=M"); bw.newLine();
+        bw.write("D=D-M"); bw.newLine();
+        bw.write(STR."@\{1+saved.size()}"); bw.newLine();
+        bw.write("D=D-A"); bw.newLine();
         bw.write("@2"); bw.newLine();
         bw.write("M=D"); bw.newLine();
-        // LCL = *(frame-1)
-        bw.write("@13"); bw.newLine();
-        bw.write("M=M-1"); bw.newLine();
-        bw.write("A=M"); bw.newLine();
-        bw.write("D=M"); bw.newLine();
-        bw.write("@1"); bw.newLine();
-        bw.write("M=D"); bw.newLine();
-        // goto retAddr
+        if (saved.contains(ProgramAnalysis.LCL)) {
+            // LCL = SP
+            bw.write("@0"); bw.newLine();
+            bw.write("D=M"); bw.newLine();
+            bw.write("@1"); bw.newLine();
+            bw.write("M=D"); bw.newLine();
+        }
         bw.write("@14"); bw.newLine();
         bw.write("A=M"); bw.newLine();
+        writeCallSite();
+        bw.write("0;JMP"); bw.newLine();
+    }
+
+    private void writeReturnRoutine(List<Integer> saved) throws IOException {
+        bw.write("// return routine"); bw.newLine();
+        bw.write(STR."(\{routine("return", saved)})"); bw.newLine();
+        if (saved.contains(ProgramAnalysis.LCL)) writeFrameAddress(saved);
+        writeRestore(saved);
+    }
+
+    private void writeComparisonRoutine(String command) throws IOException {
+        bw.write(STR."// \{command} routine"); bw.newLine();
+        bw.write(STR."(VM.\{command})"); bw.newLine();
+        popDFromSP();
+        bw.write("A=A-1"); bw.newLine();
+        bw.write("D=M-D"); bw.newLine();
+        bw.write("M=-1"); bw.newLine();
+        bw.write(STR."@VM.\{command}$true"); bw.newLine();
+        bw.write(switch (command) {
+            case "gt" -> "D;JGT";
+            case "eq" -> "D;JEQ";
+            default -> "D;JLT";
+        }); bw.newLine();
+        bw.write("@0"); bw.newLine();
+        bw.write("A=M-1"); bw.newLine();
+        bw.write("M=0"); bw.newLine();
+        bw.write(STR."(VM.\{command}$true)"); bw.newLine();
+        bw.write("@13"); bw.newLine();
+        bw.write("A=M"); bw.newLine();
         bw.write("0;JMP"); bw.newLine();
     }
 
     public void close() throws IOException {
+        if (multiplyUsed) {
+            if (report != null) report.at("VM.multiply", "routine");
+            writeMultiplyRoutine();
+        }
+        for (List<Integer> saved : callsUsed) {
+            if (report != null) report.at(routine("call", saved), "routine");
+            writeCallRoutine(saved);
+        }
+        for (List<Integer> saved : returnsUsed) {
+            if (report != null) report.at(routine("return", saved), "routine");
+            writeReturnRoutine(saved);
+        }
+        for (String comparison : comparisonsUsed) {
+            if (report != null) report.at(STR."VM.\{comparison}", "routine");
+            writeComparisonRoutine(comparison);
+        }
         bw.close();
         writer.close();
     }
@@ -0,0 +1,12 @@
+// The commands of one file, from .vm text (Parser) or .vmb bytecode (VmbReader).
+public interface CommandSource {
+    boolean hasMoreLines();
+
+    void advance();
+
+    String commandType();
+
+    String arg1();
+
+    int arg2();
+}
@@ -0,0 +1,206 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Cleans up the jumps and labels in each function of a file before it is translated. Labels are local to
+// their function, so each function is handled on its own, until nothing changes.
+public class ControlFlow {
+    private final StringBuilder report = new StringBuilder();
+
+    // What changed in the function being cleaned.
+    private int threaded;
+    private int jumpsToNext;
+    private int unusedLabels;
+    private int unreachable;
+    private int merged;
+
+    // Returns the commands of a file, one per element, with comments and blank lines dropped.
+    public List<String> clean(List<String> lines) {
+        List<String> commands = new ArrayList<>();
+        for (String line : lines) {
+            String command = line.replaceAll("//.*", "").trim();
+            if (!command.isEmpty()) commands.add(command);
+        }
+        List<String> result = new ArrayList<>();
+        int start = 0;
+        while (start < commands.size()) {
+            int end = start + 1;
+            while (end < commands.size() && !word(commands.get(end)).equals("function")) end++;
+            List<String> function = new ArrayList<>(commands.subList(start, end));
+            if (word(function.getFirst()).equals("function")) cleanFunction(function);
+            result.addAll(function);
+            start = end;
+        }
+        return result;
+    }
+
+    // One line per function that changed, empty if nothing did.
+    public String report() {
+        return report.toString();
+    }
+
+    private static String word(String command) {
+        return command.split(" ")[0];
+    }
+
+    private static String target(String command) {
+        return command.split(" ")[1];
+    }
+
+    private static boolean isJump(String command) {
+        return word(command).equals("goto") || word(command).equals("if-goto");
+    }
+
+    // Control never falls through these.
+    private static boolean isTransfer(String command) {
+        return word(command).equals("goto") || word(command).equals("return");
+    }
+
+    private void cleanFunction(List<String> function) {
+        threaded = jumpsToNext = unusedLabels = unreachable = merged = 0;
+        int before = function.size();
+        boolean changed = true;
+        while (changed) {
+            changed = threadJumps(function);
+            changed |= removeUnreachable(function);
+            changed |= removeJumpsToNext(function);
+            changed |= mergeBlock(function);
+            changed |= removeUnusedLabels(function);
+        }
+        List<String> changes = new ArrayList<>();
+        if (threaded > 0) changes.add(STR."threaded \{threaded} jump(s)");
+        if (jumpsToNext > 0) changes.add(STR."removed \{jumpsToNext} jump(s) to the next command");
+        if (unusedLabels > 0) changes.add(STR."removed \{unusedLabels} unused label(s)");
+        if (unreachable > 0) changes.add(STR."removed \{unreachable} unreachable command(s)");
+        if (merged > 0) changes.add(STR."moved \{merged} block(s) to their only jump");
+        if (!changes.isEmpty()) {
+            report.append(STR."\{target(function.getFirst())}: \{String.join(", ", changes)}; \{before - function.size()} fewer commands\n");
+        }
+    }
+
+    private static Map<String, Integer> labels(List<String> function) {
+        Map<String, Integer> labels = new HashMap<>();
+        for (int i = 0; i < function.size(); i++) {
+            if (word(function.get(i)).equals("label")) labels.put(target(function.get(i)), i);
+        }
+        return labels;
+    }
+
+    private static int references(List<String> function, String label) {
+        int count = 0;
+        for (String command : function) {
+            if (isJump(command) && target(command).equals(label)) count++;
+        }
+        return count;
+    }
+
+    // The first command after label that is not a label, or null at the end of the function.
+    private static String landing(List<String> function, int label) {
+        for (int i = label + 1; i < function.size(); i++) {
+            if (!word(function.get(i)).equals("label")) return function.get(i);
+        }
+        return null;
+    }
+
+    // A jump to a label that is followed by goto M jumps to M instead.
+    private boolean threadJumps(List<String> function) {
+        Map<String, Integer> labels = labels(function);
+        boolean changed = false;
+        for (int i = 0; i < function.size(); i++) {
+            String command = function.get(i);
+            if (!isJump(command)) continue;
+            String label = target(command);
+            Set<String> seen = new HashSet<>(List.of(label));
+            boolean cycle = false;
+            while (labels.containsKey(label)) {
+                String next = landing(function, labels.get(label));
+                if (next == null || !word(next).equals("goto")) break;
+                if (!seen.add(target(next))) {
+                    cycle = true;
+                    break;
+                }
+                label = target(next);
+            }
+            // A cycle of gotos is left as it is.
+            if (!cycle && !label.equals(target(command))) {
+                function.set(i, STR."\{word(command)} \{label}");
+                threaded++;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    // Nothing but a label can be reached after goto or return.
+    private boolean removeUnreachable(List<String> function) {
+        boolean changed = false;
+        for (int i = 1; i < function.size(); i++) {
+            if (!isTransfer(function.get(i))) continue;
+            while (i + 1 < function.size() && !word(function.get(i + 1)).equals("label")) {
+                function.remove(i + 1);
+                unreachable++;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    // goto L where only labels, one of them L, stand between it and the next command.
+    private boolean removeJumpsToNext(List<String> function) {
+        boolean changed = false;
+        for (int i = 1; i < function.size(); i++) {
+            if (!word(function.get(i)).equals("goto")) continue;
+            for (int j = i + 1; j < function.size() && word(function.get(j)).equals("label"); j++) {
+                if (target(function.get(j)).equals(target(function.get(i)))) {
+                    function.remove(i--);
+                    jumpsToNext++;
+                    changed = true;
+                    break;
+                }
+            }
+        }
+        return changed;
+    }
+
+    // A block that starts at a label only one goto refers to, and that control cannot fall into, takes the place
+    // of that goto. The block has to end in goto or return, so moving it does not change where it falls through.
+    private boolean mergeBlock(List<String> function) {
+        Map<String, Integer> labels = labels(function);
+        for (int i = 1; i < function.size(); i++) {
+            String command = function.get(i);
+            if (!word(command).equals("goto") || !labels.containsKey(target(command))) continue;
+            int start = labels.get(target(command));
+            if (start < 2 || !isTransfer(function.get(start - 1)) || references(function, target(command)) != 1) continue;
+            int end = start;
+            while (end < function.size() && !isTransfer(function.get(end))) end++;
+            if (end == function.size() || (i >= start && i <= end)) continue;
+            List<String> block = new ArrayList<>(function.subList(start + 1, end + 1));
+            function.subList(start, end + 1).clear();
+            int at = i < start ? i : i - (end + 1 - start);
+            function.remove(at);
+            function.addAll(at, block);
+            merged++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean removeUnusedLabels(List<String> function) {
+        Set<String> used = new HashSet<>();
+        for (String command : function) {
+            if (isJump(command)) used.add(target(command));
+        }
+        boolean changed = false;
+        for (int i = function.size() - 1; i > 0; i--) {
+            if (word(function.get(i)).equals("label") && !used.contains(target(function.get(i)))) {
+                function.remove(i);
+                unusedLabels++;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+}
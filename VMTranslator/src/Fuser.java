@@ -0,0 +1,231 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+// Sits between the parser and the CodeWriter. With fusion on, it holds back up to WINDOW commands and writes
+// runs that match a known idiom with one hand-written sequence instead of one sequence per command.
+// With tail calls on, it holds back each call until it sees whether a return follows.
+// With an Inliner, the calls it picks are replaced by the body of the callee.
+public class Fuser {
+    private static final int WINDOW = 4;
+
+    public enum Idiom {
+        // push S i; push constant k; add|sub; pop S i
+        INCREMENT,
+        // push constant k; lt|gt|eq; [not]; if-goto L
+        COMPARE_CONSTANT_BRANCH,
+        // lt|gt|eq; [not]; if-goto L
+        COMPARE_BRANCH,
+        // not; if-goto L
+        NOT_BRANCH,
+        // push S i; pop T j
+        MOVE,
+        // push constant k; add|sub
+        ADD_CONSTANT,
+        // call f n; return
+        TAIL_CALL,
+        // call f n, replaced by the body of f
+        INLINE
+    }
+
+    private record Command(String type, String arg1, int arg2) {
+        boolean isArithmetic(String... ops) {
+            if (!type.equals("arithmetic")) return false;
+            for (String op : ops) if (arg1.equals(op)) return true;
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return switch (type) {
+                case "arithmetic" -> arg1;
+                case "push", "pop", "function", "call" -> STR."\{type} \{arg1} \{arg2}";
+                case "return" -> type;
+                default -> STR."\{type} \{arg1}";
+            };
+        }
+    }
+
+    private final CodeWriter writer;
+    private final boolean fuse;
+    private final boolean tailCalls;
+    private Command pendingCall;
+    private Inliner inliner;
+    // The function being written, whose calls the Inliner decides on.
+    private String function;
+    private final List<Command> window = new ArrayList<>();
+    private final Map<Idiom, Integer> hits = new EnumMap<>(Idiom.class);
+
+    public Fuser(CodeWriter writer, Options options) {
+        this.writer = writer;
+        fuse = options.fuse;
+        tailCalls = options.tailCalls;
+    }
+
+    public void setInliner(Inliner inliner) {
+        this.inliner = inliner;
+    }
+
+    public void write(CommandSource parser) throws IOException {
+        String type = parser.commandType();
+        Command command = switch (type) {
+            case "push", "pop", "function", "call" -> new Command(type, parser.arg1(), parser.arg2());
+            case "return" -> new Command(type, "", 0);
+            default -> new Command(type, parser.arg1(), 0);
+        };
+        if (pendingCall != null) {
+            Command call = pendingCall;
+            pendingCall = null;
+            if (type.equals("return") && writer.writeTailCall(call.arg1, call.arg2)) {
+                hits.merge(Idiom.TAIL_CALL, 1, Integer::sum);
+                return;
+            }
+            writePlain(call);
+        }
+        if (type.equals("function")) function = command.arg1;
+        List<String> body = inliner != null && type.equals("call") ? inliner.body(function, command.arg1) : null;
+        if (body != null) {
+            flush();
+            inline(command, body);
+            return;
+        }
+        if (tailCalls && type.equals("call")) {
+            flush();
+            pendingCall = command;
+            return;
+        }
+        if (!fuse) {
+            writePlain(command);
+            return;
+        }
+        // Idioms never span labels, jumps, calls or function boundaries.
+        boolean fusable = switch (type) {
+            case "push", "pop", "arithmetic", "if-goto" -> true;
+            default -> false;
+        };
+        if (!fusable) {
+            flush();
+            writePlain(command);
+            return;
+        }
+        window.add(command);
+        while (window.size() >= WINDOW) writeFront();
+    }
+
+    // Writes every command held back. Called at the end of each file.
+    public void flush() throws IOException {
+        while (!window.isEmpty()) writeFront();
+        if (pendingCall != null) writePlain(pendingCall);
+        pendingCall = null;
+    }
+
+    // The body goes through the same fusion as the code around it.
+    private void inline(Command call, List<String> body) throws IOException {
+        hits.merge(Idiom.INLINE, 1, Integer::sum);
+        writer.beginInline(call.arg1, call.arg2);
+        Parser parser = new Parser(body.iterator());
+        while (parser.hasMoreLines()) {
+            parser.advance();
+            write(parser);
+        }
+        flush();
+        writer.endInline();
+    }
+
+    // How many times each idiom was fused, and calls were made in place or inlined, for --verbose.
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<Idiom, Integer> e : hits.entrySet()) {
+            report.append(STR."\{e.getKey().name().toLowerCase().replace('_', '-')}: \{e.getValue()}\n");
+        }
+        return report.toString();
+    }
+
+    private Command at(int i) {
+        return i < window.size() ? window.get(i) : null;
+    }
+
+    private static boolean isComparison(Command c) {
+        return c != null && c.isArithmetic("lt", "gt", "eq");
+    }
+
+    private static boolean isPush(Command c) {
+        return c != null && c.type.equals("push");
+    }
+
+    private static boolean isPushConstant(Command c) {
+        return isPush(c) && c.arg1.equals("constant");
+    }
+
+    private static boolean isPop(Command c) {
+        return c != null && c.type.equals("pop");
+    }
+
+    // Writes the longest idiom at the front of the window, or else its first command on its own.
+    private void writeFront() throws IOException {
+        Command a = at(0), b = at(1), c = at(2), d = at(3);
+        if (isPush(a) && !isPushConstant(a) && isPushConstant(b) && c != null && c.isArithmetic("add", "sub")
+                && isPop(d) && d.arg1.equals(a.arg1) && d.arg2 == a.arg2) {
+            fused(Idiom.INCREMENT, 4);
+            writer.writeIncrement(a.arg1, a.arg2, c.arg1.equals("add") ? b.arg2 : -b.arg2);
+        }
+        else if (isPushConstant(a) && isComparison(b) && branch(2) != 0) {
+            int n = branch(2);
+            String label = window.get(n).arg1;
+            fused(Idiom.COMPARE_CONSTANT_BRANCH, n + 1);
+            writer.writeCompareIf(b.arg1, n == 3, a.arg2, label);
+        }
+        else if (isPush(a) && isPop(b)) {
+            fused(Idiom.MOVE, 2);
+            writer.writeMove(a.arg1, a.arg2, b.arg1, b.arg2);
+        }
+        else if (isPushConstant(a) && b != null && b.isArithmetic("add", "sub")) {
+            fused(Idiom.ADD_CONSTANT, 2);
+            writer.writeAddConstant(b.arg1.equals("add") ? a.arg2 : -a.arg2);
+        }
+        else if (isComparison(a) && branch(1) != 0) {
+            int n = branch(1);
+            String label = window.get(n).arg1;
+            fused(Idiom.COMPARE_BRANCH, n + 1);
+            writer.writeCompareIf(a.arg1, n == 2, null, label);
+        }
+        else if (a.isArithmetic("not") && b != null && b.type.equals("if-goto")) {
+            fused(Idiom.NOT_BRANCH, 2);
+            writer.writeIfNot(b.arg1);
+        }
+        else {
+            writePlain(window.removeFirst());
+        }
+    }
+
+    // The index of the if-goto that follows a comparison ending at i - 1, with or without a not in between, or 0.
+    private int branch(int i) {
+        Command next = at(i);
+        if (next != null && next.isArithmetic("not")) next = at(++i);
+        return next != null && next.type.equals("if-goto") ? i : 0;
+    }
+
+    // Takes the run off the window, before its replacement is written.
+    private void fused(Idiom idiom, int length) throws IOException {
+        List<Command> run = window.subList(0, length);
+        writer.writeComment(String.join("; ", run.stream().map(Command::toString).toList()));
+        hits.merge(idiom, 1, Integer::sum);
+        run.clear();
+    }
+
+    private void writePlain(Command command) throws IOException {
+        switch (command.type) {
+            case "arithmetic" -> writer.writeArithmetic(command.arg1);
+            case "push", "pop" -> writer.writePushPop(command.type, command.arg1, command.arg2);
+            case "label" -> writer.writeLabel(command.arg1);
+            case "goto" -> writer.writeGoto(command.arg1);
+            case "if-goto" -> writer.writeIf(command.arg1);
+            case "function" -> writer.writeFunction(command.arg1, command.arg2);
+            case "call" -> writer.writeCall(command.arg1, command.arg2);
+            case "return" -> writer.writeReturn();
+            default -> {}
+        }
+    }
+}
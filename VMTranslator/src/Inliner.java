@@ -0,0 +1,124 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Picks the calls that are replaced by the body of the callee, from a profile. The profile counts calls by caller
+// and callee, not by call site, so all of a caller's calls to a callee are inlined or none. They are where the
+// caller is hot and its call sites run MIN_CALLS times each on average, and the callee is small, calls nothing,
+// has a static frame, and has nothing on the stack but its result when it returns. Each call site copies the
+// body, so the busiest call sites go first, until BUDGET runs out.
+public class Inliner {
+    private static final int MAX_COMMANDS = 40;
+    // Commands of all inlined bodies together.
+    private static final int BUDGET = 500;
+    private static final int MIN_CALLS = 10;
+
+    // Each inlinable function's commands after function, without a return at the end.
+    private final Map<String, List<String>> bodies = new HashMap<>();
+    // The callees each caller has inlined.
+    private final Map<String, Set<String>> inlined = new HashMap<>();
+
+    public Inliner(Map<String, List<String>> program, ProgramAnalysis analysis, Profile profile) {
+        Map<String, List<String>> functions = new HashMap<>();
+        // Call sites, by caller and callee.
+        Map<String, Map<String, Integer>> sites = new HashMap<>();
+        for (List<String> lines : program.values()) {
+            Parser parser = new Parser(lines.iterator());
+            List<String> current = null;
+            String name = null;
+            while (parser.hasMoreLines()) {
+                parser.advance();
+                if (parser.commandType().equals("function")) {
+                    name = parser.arg1();
+                    current = new ArrayList<>();
+                    functions.put(name, current);
+                    continue;
+                }
+                if (current == null) continue;
+                current.add(parser.command);
+                if (parser.commandType().equals("call")) {
+                    sites.computeIfAbsent(name, c -> new HashMap<>()).merge(parser.arg1(), 1, Integer::sum);
+                }
+            }
+        }
+        for (Map.Entry<String, List<String>> f : functions.entrySet()) {
+            ProgramAnalysis.Function function = analysis.function(f.getKey());
+            if (function != null && function.frame != -1 && f.getValue().size() <= MAX_COMMANDS && isBalanced(f.getValue())) {
+                List<String> body = new ArrayList<>(f.getValue());
+                if (!body.isEmpty() && body.getLast().equals("return")) body.removeLast();
+                bodies.put(f.getKey(), body);
+            }
+        }
+        record Edge(String caller, String callee, int sites, long callsPerSite) {}
+        List<Edge> edges = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Integer>> caller : sites.entrySet()) {
+            if (!profile.isHot(caller.getKey())) continue;
+            for (Map.Entry<String, Integer> callee : caller.getValue().entrySet()) {
+                long callsPerSite = profile.calls(caller.getKey(), callee.getKey()) / callee.getValue();
+                if (bodies.containsKey(callee.getKey()) && callsPerSite >= MIN_CALLS) {
+                    edges.add(new Edge(caller.getKey(), callee.getKey(), callee.getValue(), callsPerSite));
+                }
+            }
+        }
+        edges.sort(Comparator.comparingLong(Edge::callsPerSite).reversed());
+        int budget = BUDGET;
+        for (Edge e : edges) {
+            int cost = e.sites * bodies.get(e.callee).size();
+            if (cost > budget) continue;
+            budget -= cost;
+            inlined.computeIfAbsent(e.caller, c -> new HashSet<>()).add(e.callee);
+        }
+    }
+
+    // Whether the stack is as deep at each label from every jump to it and from the command before it,
+    // and holds just the result at each return, so that the body can run on the caller's stack.
+    // A function that calls anything is not balanced either.
+    private static boolean isBalanced(List<String> commands) {
+        Map<String, Integer> labels = new HashMap<>();
+        int depth = 0;
+        boolean reachable = true;
+        for (String command : commands) {
+            String[] words = command.split(" ");
+            if (words[0].equals("label")) {
+                Integer jumped = labels.putIfAbsent(words[1], depth);
+                if (jumped != null) {
+                    if (reachable && jumped != depth) return false;
+                    depth = jumped;
+                }
+                else if (!reachable) return false;
+                reachable = true;
+                continue;
+            }
+            if (!reachable) continue;
+            switch (words[0]) {
+                case "push" -> depth++;
+                case "pop", "add", "sub", "and", "or", "eq", "gt", "lt" -> depth--;
+                case "neg", "not" -> {}
+                case "goto", "if-goto" -> {
+                    if (words[0].equals("if-goto")) depth--;
+                    Integer seen = labels.putIfAbsent(words[1], depth);
+                    if (seen != null && seen != depth) return false;
+                    if (words[0].equals("goto")) reachable = false;
+                }
+                case "return" -> {
+                    if (depth != 1) return false;
+                    reachable = false;
+                }
+                default -> {
+                    return false;
+                }
+            }
+            if (depth < 0) return false;
+        }
+        return !reachable;
+    }
+
+    // The commands that replace caller's call to callee, or null if the call stays.
+    public List<String> body(String caller, String callee) {
+        return inlined.getOrDefault(caller, Set.of()).contains(callee) ? bodies.get(callee) : null;
+    }
+}
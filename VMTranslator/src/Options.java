@@ -0,0 +1,86 @@
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+public class Options {
+    public static final String USAGE = "Usage: java VMTranslator [--static-frames] [--light-calls] [--fuse] [--tail-calls] [--intrinsics] [--intrinsic name]... [--cleanup] [--profile file] [--rom-report file] [--verbose] <filename/dirname>";
+
+    // Give functions that can never be re-entered fixed RAM for their arguments and locals,
+    // so that those are addressed directly instead of through ARG and LCL.
+    public boolean staticFrames;
+    // Save and restore only the registers each function changes on calls to it, instead of LCL, ARG, THIS and THAT.
+    public boolean lightCalls;
+    // Translate common runs of commands, such as i = i + 1 or a comparison followed by if-goto, as one unit.
+    public boolean fuse;
+    // Replace the current frame instead of building a new one for a call followed by return.
+    public boolean tailCalls;
+    // OS functions whose calls are translated to Hack code that does the same work without a call,
+    // from CodeWriter.INTRINSICS. --intrinsics picks all of them.
+    public final Set<String> intrinsics = new LinkedHashSet<>();
+    // Thread jumps to jumps, and drop jumps to the next command, unused labels and unreachable commands.
+    public boolean cleanup;
+    // A profile from HackSimulator --profile. Hot calls to small functions are replaced by their body, and
+    // functions that are not hot get the compact forms of call, return and comparisons, see Inliner and CodeWriter.
+    public String profile;
+    // Where to write how many words of ROM each function takes, by kind of command, as CSV or, for a .json file, JSON.
+    // Translation also fails, naming the largest functions, if the program does not fit in ROM.
+    public String romReport;
+    // Print how many times each idiom was fused and each call made in place or inlined, and what cleanup changed.
+    public boolean verbose;
+    public String path;
+
+    public static Options parse(String[] args) {
+        Options options = parseFlags(args);
+        if (options.path == null) {
+            throw new IllegalArgumentException(USAGE);
+        }
+        return options;
+    }
+
+    // Like parse, for callers that pass the program in memory and so have no path.
+    public static Options parseFlags(String[] args) {
+        Options options = new Options();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--static-frames" -> options.staticFrames = true;
+                case "--light-calls" -> options.lightCalls = true;
+                case "--fuse" -> options.fuse = true;
+                case "--tail-calls" -> options.tailCalls = true;
+                case "--cleanup" -> options.cleanup = true;
+                case "--intrinsics" -> options.intrinsics.addAll(CodeWriter.INTRINSICS);
+                case "--intrinsic" -> {
+                    if (i + 1 == args.length || !CodeWriter.INTRINSICS.contains(args[i + 1])) {
+                        throw new IllegalArgumentException(USAGE);
+                    }
+                    options.intrinsics.add(args[++i]);
+                }
+                case "--profile" -> {
+                    if (i + 1 == args.length) throw new IllegalArgumentException(USAGE);
+                    options.profile = args[++i];
+                }
+                case "--rom-report" -> {
+                    if (i + 1 == args.length) throw new IllegalArgumentException(USAGE);
+                    options.romReport = args[++i];
+                }
+                case "--verbose" -> options.verbose = true;
+                default -> {
+                    if (arg.startsWith("-") || options.path != null) {
+                        throw new IllegalArgumentException(USAGE);
+                    }
+                    options.path = arg;
+                }
+            }
+        }
+        return options;
+    }
+
+    // Whether translation needs to see the whole program before writing anything.
+    public boolean wholeProgram() {
+        return analyze() || cleanup || romReport != null;
+    }
+
+    // Whether the program's call graph and frames are analyzed before translation.
+    public boolean analyze() {
+        return staticFrames || lightCalls || tailCalls || profile != null;
+    }
+}
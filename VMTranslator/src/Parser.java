@@ -1,16 +1,17 @@
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Iterator;
 import java.util.Objects;
-import java.util.Scanner;
 
-public class Parser {
-    private final Scanner reader;
+public class Parser implements CommandSource {
+    private final Iterator<String> reader;
     public String command;
 
     public Parser(String f) throws IOException {
         // Initialize.
         Path obj = Path.of(f);
-        reader = new Scanner(obj);
+        reader = Files.lines(obj).iterator();
 
         if (!f.endsWith(".vm"))
         {
@@ -18,11 +19,16 @@ public class Parser {
         }
     }
 
-    public boolean hasMoreLines() {return reader.hasNextLine();}
+    // Reads commands that are already in memory, one per element.
+    public Parser(Iterator<String> lines) {
+        reader = lines;
+    }
+
+    public boolean hasMoreLines() {return reader.hasNext();}
 
     public void advance() {
         // Assume hasMoreLines() is true.
-        String line = reader.nextLine().replaceAll("//.*", "").trim();
+        String line = reader.next().replaceAll("//.*", "").trim();
         if (!line.isEmpty()) {
             command = line;}
         else {advance();}
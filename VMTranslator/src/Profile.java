@@ -0,0 +1,68 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// A profile written by HackSimulator --profile: how many times each function was called and by whom, and how
+// many cycles it spent itself. Functions are named as in the VM code, so a profile of one build still applies
+// after the translator options change.
+public class Profile {
+    // The hot functions are the fewest that together spent this share of the cycles.
+    private static final double HOT_SHARE = 0.9;
+
+    private final Map<String, Long> cycles = new HashMap<>();
+    private final Map<String, Map<String, Long>> edges = new HashMap<>();
+    private final Set<String> hot = new HashSet<>();
+
+    public static Profile read(Path path) throws IOException {
+        Profile profile = new Profile();
+        List<String> lines = Files.readAllLines(path);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] words = line.split("\\s+");
+            try {
+                switch (words[0]) {
+                    case "function" -> profile.cycles.put(words[1], Long.parseLong(words[3]));
+                    case "call" -> profile.edges.computeIfAbsent(words[1], c -> new HashMap<>()).put(words[2], Long.parseLong(words[3]));
+                    default -> throw new IllegalArgumentException(words[0]);
+                }
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                throw new IllegalArgumentException(STR."\{path}:\{i + 1}: not a profile line: \{line}");
+            }
+        }
+        profile.findHot();
+        return profile;
+    }
+
+    private void findHot() {
+        long total = cycles.values().stream().mapToLong(Long::longValue).sum();
+        List<Map.Entry<String, Long>> byCycles = new ArrayList<>(cycles.entrySet());
+        byCycles.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        long covered = 0;
+        for (Map.Entry<String, Long> e : byCycles) {
+            if (covered >= total * HOT_SHARE) break;
+            hot.add(e.getKey());
+            covered += e.getValue();
+        }
+    }
+
+    // Whether function is among those where most of the cycles were spent. A function that never ran is not.
+    public boolean isHot(String function) {
+        return hot.contains(function);
+    }
+
+    // How many times caller called callee.
+    public long calls(String caller, String callee) {
+        return edges.getOrDefault(caller, Map.of()).getOrDefault(callee, 0L);
+    }
+
+    public int hotFunctions() {
+        return hot.size();
+    }
+}
@@ -0,0 +1,240 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class ProgramAnalysis {
+    // RAM[16..255] is shared by static variables, which the assembler allocates from 16 up,
+    // and static frames, which are placed right after them.
+    private static final int STATIC_BASE = 16;
+    private static final int STACK_BASE = 256;
+    // The registers a call saves, by address, in the order they are pushed after the return address.
+    public static final int LCL = 1, ARG = 2, THIS = 3, THAT = 4;
+    public static final List<Integer> FULL_FRAME = List.of(LCL, ARG, THIS, THAT);
+
+    public static class Function {
+        public final String name;
+        public final String fileName;
+        public int nVars;
+        // Number of arguments every call site passes, or -1 if call sites disagree.
+        public int nArgs = -2;
+        public int maxArgument = -1;
+        public final List<String> callees = new ArrayList<>();
+        public boolean recursive;
+        // First RAM address of the static frame: arguments, then locals. -1 if the function uses a stack frame.
+        public int frame = -1;
+        // What the function does itself, leaving out its callees, which restore whatever they change.
+        public boolean usesLocal;
+        public boolean writesThis;
+        public boolean writesThat;
+        // The registers calls to this function save. Without LCL, return finds the saved registers
+        // through ARG instead, which needs every call to pass callArity() arguments.
+        public List<Integer> saved = FULL_FRAME;
+
+        Function(String name, String fileName) {
+            this.name = name;
+            this.fileName = fileName;
+        }
+
+        public int arity() {
+            return nArgs == -2 ? maxArgument + 1 : nArgs;
+        }
+
+        public int frameSize() {
+            return arity() + nVars;
+        }
+
+        // Number of arguments each call leaves on the stack; arguments of a static frame are popped before the call.
+        public int callArity() {
+            return frame == -1 ? nArgs : 0;
+        }
+    }
+
+    private final Map<String, Function> functions = new LinkedHashMap<>();
+    private final Set<String> statics = new HashSet<>();
+    private final List<String> warnings = new ArrayList<>();
+
+    // program maps each file name, without .vm, to its commands.
+    public ProgramAnalysis(Map<String, List<String>> program, Options options) {
+        for (Map.Entry<String, List<String>> file : program.entrySet()) {
+            scan(file.getKey(), file.getValue());
+        }
+        for (Function f : functions.values()) {
+            for (String callee : f.callees) {
+                if (!functions.containsKey(callee)) {
+                    warnings.add(STR."\{callee} is called from \{f.name} but not defined; the program is analyzed as incomplete.");
+                }
+            }
+        }
+        if (!warnings.isEmpty()) return;
+        markRecursion();
+        if (options.staticFrames) allocateStaticFrames();
+        if (options.lightCalls) chooseFrames();
+    }
+
+    private void scan(String fileName, List<String> lines) {
+        Parser parser = new Parser(lines.iterator());
+        Function current = null;
+        while (parser.hasMoreLines()) {
+            parser.advance();
+            switch (parser.commandType()) {
+                case "function" -> {
+                    current = new Function(parser.arg1(), fileName);
+                    current.nVars = parser.arg2();
+                    functions.put(current.name, current);
+                }
+                case "call" -> {
+                    if (current != null) current.callees.add(parser.arg1());
+                    countArguments(parser.arg1(), parser.arg2());
+                }
+                case "push", "pop" -> {
+                    if (parser.arg1().equals("static")) statics.add(STR."\{fileName}.\{parser.arg2()}");
+                    if (current == null) continue;
+                    switch (parser.arg1()) {
+                        case "argument" -> current.maxArgument = Math.max(current.maxArgument, parser.arg2());
+                        case "local" -> current.usesLocal = true;
+                        case "pointer" -> {
+                            if (parser.commandType().equals("pop")) {
+                                if (parser.arg2() == 0) current.writesThis = true;
+                                else current.writesThat = true;
+                            }
+                        }
+                        default -> {}
+                    }
+                }
+                default -> {}
+            }
+        }
+    }
+
+    // Call sites may come before the function is defined, so their counts are kept by name.
+    private final Map<String, Integer> arguments = new HashMap<>();
+
+    private void countArguments(String callee, int nArgs) {
+        Integer seen = arguments.putIfAbsent(callee, nArgs);
+        if (seen != null && seen != nArgs) arguments.put(callee, -1);
+    }
+
+    // Strongly connected components of the call graph, callees before callers.
+    private final List<List<String>> components = new ArrayList<>();
+
+    // Tarjan's algorithm; a function is recursive if it shares a strongly connected component
+    // of the call graph with another function, or calls itself.
+    private void markRecursion() {
+        for (Map.Entry<String, Integer> e : arguments.entrySet()) {
+            functions.get(e.getKey()).nArgs = e.getValue();
+        }
+        Map<String, Integer> index = new HashMap<>();
+        Map<String, Integer> low = new HashMap<>();
+        Deque<String> stack = new ArrayDeque<>();
+        Set<String> onStack = new HashSet<>();
+        for (String root : functions.keySet()) {
+            if (index.containsKey(root)) continue;
+            // Iterative, so deep call chains do not overflow the Java stack.
+            Deque<Object[]> work = new ArrayDeque<>();
+            work.push(new Object[] {root, 0});
+            while (!work.isEmpty()) {
+                Object[] frame = work.peek();
+                String v = (String) frame[0];
+                int i = (int) frame[1];
+                if (i == 0) {
+                    index.put(v, index.size());
+                    low.put(v, index.get(v));
+                    stack.push(v);
+                    onStack.add(v);
+                }
+                List<String> callees = functions.get(v).callees;
+                if (i < callees.size()) {
+                    frame[1] = i + 1;
+                    String w = callees.get(i);
+                    if (w.equals(v)) functions.get(v).recursive = true;
+                    if (!index.containsKey(w)) work.push(new Object[] {w, 0});
+                    else if (onStack.contains(w)) low.put(v, Math.min(low.get(v), index.get(w)));
+                    continue;
+                }
+                work.pop();
+                if (!work.isEmpty()) {
+                    String parent = (String) work.peek()[0];
+                    low.put(parent, Math.min(low.get(parent), low.get(v)));
+                }
+                if (low.get(v).equals(index.get(v))) {
+                    List<String> component = new ArrayList<>();
+                    String w;
+                    do {
+                        w = stack.pop();
+                        onStack.remove(w);
+                        component.add(w);
+                    } while (!w.equals(v));
+                    if (component.size() > 1) {
+                        for (String c : component) functions.get(c).recursive = true;
+                    }
+                    components.add(component);
+                }
+            }
+        }
+    }
+
+    // Frames of functions that can never be active at the same time overlap: a function's frame starts
+    // above the frames of every function that can be on the call stack below it. Components are visited
+    // callers first; a function whose frame does not fit below the stack keeps its stack frame.
+    private void allocateStaticFrames() {
+        int base = STATIC_BASE + statics.size();
+        Map<String, Integer> top = new HashMap<>();
+        for (List<String> component : components.reversed()) {
+            int start = base;
+            for (String name : component) start = Math.max(start, top.getOrDefault(name, base));
+            int end = start;
+            if (component.size() == 1) {
+                Function f = functions.get(component.getFirst());
+                if (!f.recursive && f.nArgs != -1 && f.maxArgument < f.arity() && start + f.frameSize() <= STACK_BASE) {
+                    f.frame = start;
+                    end = start + f.frameSize();
+                }
+            }
+            for (String name : component) {
+                for (String callee : functions.get(name).callees) {
+                    top.merge(callee, end, Math::max);
+                }
+            }
+        }
+    }
+
+    // A function only has to save the registers it changes itself. ARG is always set, since return
+    // leaves the result where it points. LCL is set if the function keeps locals on the stack, or if
+    // its callers disagree on the number of arguments and return cannot find the frame through ARG.
+    private void chooseFrames() {
+        for (Function f : functions.values()) {
+            boolean stackLocals = f.frame == -1 && (f.usesLocal || f.nVars > 0);
+            List<Integer> saved = new ArrayList<>();
+            if (stackLocals || f.callArity() < 0) saved.add(LCL);
+            saved.add(ARG);
+            if (f.writesThis) saved.add(THIS);
+            if (f.writesThat) saved.add(THAT);
+            f.saved = List.copyOf(saved);
+        }
+    }
+
+    public Function function(String name) {
+        return functions.get(name);
+    }
+
+    public List<String> warnings() {
+        return warnings;
+    }
+
+    // The RAM address of argument or local i of function, or -1 if it lives in a stack frame.
+    public int address(String function, String segment, int i) {
+        Function f = functions.get(function);
+        if (f == null || f.frame == -1) return -1;
+        return switch (segment) {
+            case "argument" -> f.frame + i;
+            case "local" -> f.frame + f.arity() + i;
+            default -> -1;
+        };
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Counts the Hack instructions CodeWriter writes, by function and by the kind of VM command they were written
+// for, such as call, return, push local or lt. Fused runs count as the idiom, inlined bodies as inline, and the
+// shared routines written at the end as functions of their own. Every instruction becomes one word of ROM.
+public class RomReport {
+    public static final int ROM_SIZE = 32768;
+    private static final int OFFENDERS = 10;
+
+    // Words by function, then by kind, in the order they were written.
+    private final Map<String, Map<String, Integer>> words = new LinkedHashMap<>();
+    private Map<String, Integer> current;
+    private String kind;
+    private int total;
+
+    // Attributes what is written from now on.
+    public void at(String function, String kind) {
+        current = words.computeIfAbsent(function, f -> new LinkedHashMap<>());
+        this.kind = kind;
+    }
+
+    // A BufferedWriter that counts each line that is an instruction, not a label, a comment or blank.
+    public BufferedWriter counting(Writer output) {
+        return new BufferedWriter(output) {
+            private final StringBuilder line = new StringBuilder();
+
+            @Override
+            public void write(String s, int off, int len) throws IOException {
+                super.write(s, off, len);
+                if (line.length() < 2) line.append(s, off, off + Math.min(len, 2));
+            }
+
+            @Override
+            public void newLine() throws IOException {
+                if (!line.isEmpty() && line.charAt(0) != '(' && !(line.charAt(0) == '/' && line.length() > 1 && line.charAt(1) == '/')) {
+                    current.merge(kind, 1, Integer::sum);
+                    total++;
+                }
+                // The line separator goes through write too.
+                super.newLine();
+                line.setLength(0);
+            }
+        };
+    }
+
+    public int total() {
+        return total;
+    }
+
+    private static int sum(Map<String, Integer> kinds) {
+        return kinds.values().stream().mapToInt(Integer::intValue).sum();
+    }
+
+    // Functions by size, largest first.
+    private List<Map.Entry<String, Map<String, Integer>>> bySize() {
+        List<Map.Entry<String, Map<String, Integer>>> functions = new ArrayList<>(words.entrySet());
+        functions.sort((a, b) -> Integer.compare(sum(b.getValue()), sum(a.getValue())));
+        return functions;
+    }
+
+    // Throws if the program does not fit in ROM, naming the largest functions.
+    public void checkSize() {
+        if (total <= ROM_SIZE) return;
+        StringBuilder message = new StringBuilder(STR."The program needs \{total} words of ROM, \{total - ROM_SIZE} more than the \{ROM_SIZE} there are. The largest functions:");
+        for (Map.Entry<String, Map<String, Integer>> f : bySize().subList(0, Math.min(OFFENDERS, words.size()))) {
+            message.append(STR."\n  \{f.getKey()} \{sum(f.getValue())}");
+        }
+        throw new IllegalStateException(message.toString());
+    }
+
+    // As JSON if path ends in .json, else as CSV with one row for each function and kind.
+    public void write(Path path) throws IOException {
+        List<String> lines = new ArrayList<>();
+        if (path.toString().endsWith(".json")) {
+            lines.add(STR."{\"total\": \{total}, \"functions\": [");
+            List<Map.Entry<String, Map<String, Integer>>> functions = bySize();
+            for (int i = 0; i < functions.size(); i++) {
+                Map.Entry<String, Map<String, Integer>> f = functions.get(i);
+                List<String> kinds = new ArrayList<>();
+                for (Map.Entry<String, Integer> k : f.getValue().entrySet()) kinds.add(STR."\"\{k.getKey()}\": \{k.getValue()}");
+                lines.add(STR."  {\"class\": \"\{className(f.getKey())}\", \"function\": \"\{f.getKey()}\", \"words\": \{sum(f.getValue())}, \"kinds\": {\{String.join(", ", kinds)}}}\{i + 1 < functions.size() ? "," : ""}");
+            }
+            lines.add("]}");
+        }
+        else {
+            lines.add("class,function,kind,words");
+            for (Map.Entry<String, Map<String, Integer>> f : bySize()) {
+                for (Map.Entry<String, Integer> k : f.getValue().entrySet()) {
+                    lines.add(STR."\{className(f.getKey())},\{f.getKey()},\{k.getKey()},\{k.getValue()}");
+                }
+            }
+        }
+        Files.write(path, lines);
+    }
+
+    private static String className(String function) {
+        int dot = function.indexOf('.');
+        return dot == -1 ? "" : function.substring(0, dot);
+    }
+}
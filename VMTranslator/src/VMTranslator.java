@@ -1,58 +1,174 @@
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 public class VMTranslator {
 
     public static void main(String[] args) throws IOException {
-        if (args.length != 1) {
-            throw new IllegalArgumentException("Enter one and only one argument.");
-        }
+        Options options = Options.parse(args);
 
-        Parser parser;
+        CommandSource parser;
         final CodeWriter writer;
-        String filename = args[0];
+        final Fuser fuser;
+        String filename = options.path;
 
         Path f = Path.of(filename);
+        if (options.wholeProgram()) {
+            // Every file is read before anything is written, so the translation can depend on the whole program.
+            List<Path> worklist = Files.isDirectory(f) ? vmFiles(f) : List.of(f);
+            Map<String, List<String>> program = new LinkedHashMap<>();
+            for (Path path : worklist) {
+                program.put(fileName(path), path.toString().endsWith(".vmb") ? new VmbReader(path).lines() : Files.readAllLines(path));
+            }
+            String output = Files.isDirectory(f) ? filename : filename.replaceAll("\\.vmb?$", "");
+            try (FileWriter fw = new FileWriter(STR."\{output}.asm")) {
+                translate(program, options, fw::write);
+            }
+            return;
+        }
         if (!Files.isDirectory(f)) {
-            writer = new CodeWriter(filename.replace(".vm", ".asm"));
-            parser = new Parser(filename);
-            translate(parser, writer);
+            writer = new CodeWriter(filename.replaceAll("\\.vmb?$", ""));
+            writer.setIntrinsics(options.intrinsics);
+            fuser = new Fuser(writer, options);
+            parser = open(f);
+            translate(parser, fuser);
         }
         else {
             writer = new CodeWriter(filename);
+            writer.setIntrinsics(options.intrinsics);
+            fuser = new Fuser(writer, options);
             List<Path> worklist;
             try {
-                worklist = Files.list(f).filter(path -> path.getFileName().toString().endsWith(".vm")).toList();
+                worklist = vmFiles(f);
                 for (Path path : worklist) {
-                    parser = new Parser(path.toString());
-                    writer.setFileName(path.getFileName().toString().replace(".vm", ""));
-                    translate(parser, writer);
+                    parser = open(path);
+                    writer.setFileName(fileName(path));
+                    translate(parser, fuser);
                 }
             } catch (IOException e) {
                 throw new RuntimeException("Can't open directory.");
             }
         }
         writer.close();
+        if (options.verbose) System.out.print(fuser.report());
     }
 
-    private static void translate(Parser parser, CodeWriter writer) throws IOException {
-        do {
-            parser.advance();
-            System.out.println(parser.command);
-            switch(parser.commandType()) {
-                case "arithmetic" -> writer.writeArithmetic(parser.arg1());
-                case "push" -> writer.writePushPop("push", parser.arg1(), parser.arg2());
-                case "pop" -> writer.writePushPop("pop", parser.arg1(), parser.arg2());
-                case "label" -> writer.writeLabel(parser.arg1());
-                case "goto" -> writer.writeGoto(parser.arg1());
-                case "if-goto" -> writer.writeIf(parser.arg1());
-                case "function" -> writer.writeFunction(parser.arg1(), parser.arg2());
-                case "call" -> writer.writeCall(parser.arg1(), parser.arg2());
-                case "return" -> writer.writeReturn();
-                default -> parser.advance();
+    // The .vm and .vmb files of dir, by name. If a class has both, the one written last is used.
+    private static List<Path> vmFiles(Path dir) throws IOException {
+        Map<String, Path> files = new TreeMap<>();
+        try (Stream<Path> list = Files.list(dir)) {
+            for (Path path : list.filter(VMTranslator::isVmFile).toList()) {
+                Path other = files.get(fileName(path));
+                if (other == null || Files.getLastModifiedTime(path).compareTo(Files.getLastModifiedTime(other)) > 0) {
+                    files.put(fileName(path), path);
+                }
             }
-        } while (parser.hasMoreLines());
+        }
+        return List.copyOf(files.values());
+    }
+
+    private static boolean isVmFile(Path path) {
+        String name = path.getFileName().toString();
+        return name.endsWith(".vm") || name.endsWith(".vmb");
+    }
+
+    // The file name without .vm or .vmb, which static variables are named after.
+    private static String fileName(Path path) {
+        return path.getFileName().toString().replaceAll("\\.vmb?$", "");
+    }
+
+    private static CommandSource open(Path path) throws IOException {
+        return path.toString().endsWith(".vmb") ? new VmbReader(path) : new Parser(path.toString());
+    }
+
+    private interface Sink {
+        void accept(String assembly) throws IOException;
+    }
+
+    // Translates a whole program held in memory, by file name, after cleaning and analyzing it.
+    private static void translate(Map<String, List<String>> program, Options options, Sink sink) throws IOException {
+        if (options.cleanup) {
+            ControlFlow controlFlow = new ControlFlow();
+            program.replaceAll((file, lines) -> controlFlow.clean(lines));
+            if (options.verbose) System.out.print(controlFlow.report());
+        }
+        ProgramAnalysis analysis = null;
+        if (options.analyze()) {
+            analysis = new ProgramAnalysis(program, options);
+            analysis.warnings().forEach(System.err::println);
+        }
+        StringWriter buffer = new StringWriter();
+        RomReport report = options.romReport == null ? null : new RomReport();
+        CodeWriter writer = new CodeWriter(buffer, analysis, report);
+        writer.setIntrinsics(options.intrinsics);
+        Fuser fuser = new Fuser(writer, options);
+        if (options.profile != null) {
+            Profile profile = Profile.read(Path.of(options.profile));
+            writer.setProfile(profile);
+            fuser.setInliner(new Inliner(program, analysis, profile));
+            if (options.verbose) System.out.println(STR."profile: \{profile.hotFunctions()} hot function(s)");
+        }
+        for (Map.Entry<String, List<String>> file : program.entrySet()) {
+            Parser parser = new Parser(file.getValue().iterator());
+            writer.setFileName(file.getKey());
+            if (parser.hasMoreLines()) translate(parser, fuser);
+            writer.flush();
+            sink.accept(buffer.toString());
+            buffer.getBuffer().setLength(0);
+        }
+        writer.close();
+        if (!buffer.getBuffer().isEmpty()) sink.accept(buffer.toString());
+        if (options.verbose) System.out.print(fuser.report());
+        if (report != null) {
+            report.write(Path.of(options.romReport));
+            report.checkSize();
+        }
+    }
+
+    private static void translate(CommandSource parser, Fuser fuser) throws IOException {
+        while (parser.hasMoreLines()) {
+            parser.advance();
+            fuser.write(parser);
+        }
+        fuser.flush();
+    }
+
+    // Translates classes as they arrive, each given as its file name (without .vm) and its VM commands,
+    // and hands the assembly of each class to sink as soon as it is written, starting with the bootstrap.
+    // Options that need the whole program wait for the last class before writing anything.
+    // Used to run the whole toolchain in one JVM, so it only takes JDK types.
+    public static void translate(Iterator<Map.Entry<String, List<String>>> classes, Consumer<List<String>> sink, String... flags) throws IOException {
+        Options options = Options.parseFlags(flags);
+        if (options.wholeProgram()) {
+            Map<String, List<String>> program = new LinkedHashMap<>();
+            classes.forEachRemaining(c -> program.put(c.getKey(), c.getValue()));
+            translate(program, options, assembly -> sink.accept(assembly.lines().toList()));
+            return;
+        }
+        StringWriter buffer = new StringWriter();
+        CodeWriter writer = new CodeWriter(buffer);
+        writer.setIntrinsics(options.intrinsics);
+        Fuser fuser = new Fuser(writer, options);
+        while (classes.hasNext()) {
+            Map.Entry<String, List<String>> c = classes.next();
+            Parser parser = new Parser(c.getValue().iterator());
+            writer.setFileName(c.getKey());
+            if (parser.hasMoreLines()) translate(parser, fuser);
+            writer.flush();
+            sink.accept(buffer.toString().lines().toList());
+            buffer.getBuffer().setLength(0);
+        }
+        writer.close();
+        if (!buffer.getBuffer().isEmpty()) sink.accept(buffer.toString().lines().toList());
+        if (options.verbose) System.out.print(fuser.report());
     }
 }
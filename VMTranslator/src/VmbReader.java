@@ -0,0 +1,112 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Reads .vmb bytecode, as written by JackAnalyzer --binary, straight from the mapped file:
+//
+//   "VMB1", varint pool size, then each pool name as varint byte length and UTF-8 bytes,
+//   then one command after another until the end of the file:
+//     arithmetic        opcode 0-8: add, sub, neg, eq, gt, lt, and, or, not
+//     push, pop         opcode 16, 17, segment byte (constant, argument, local, static, this, that, pointer, temp), varint index
+//     label, goto, if   opcode 18, 19, 20, varint pool index
+//     function, call    opcode 21, 22, varint pool index, varint nVars or nArgs
+//     return            opcode 23
+//
+// Only the pool names become Strings, once each; commands are decoded in place.
+public class VmbReader implements CommandSource {
+    private static final byte[] MAGIC = "VMB1".getBytes(StandardCharsets.US_ASCII);
+    private static final String[] ARITHMETIC = {"add", "sub", "neg", "eq", "gt", "lt", "and", "or", "not"};
+    private static final String[] SEGMENTS = {"constant", "argument", "local", "static", "this", "that", "pointer", "temp"};
+    private static final String[] TYPES = {"push", "pop", "label", "goto", "if-goto", "function", "call", "return"};
+
+    private final ByteBuffer code;
+    private final String[] pool;
+    private String type;
+    private String arg1;
+    private int arg2;
+
+    public VmbReader(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            code = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        for (byte b : MAGIC) {
+            if (!code.hasRemaining() || code.get() != b) throw new IllegalArgumentException(STR."\{path} is not a .vmb file.");
+        }
+        pool = new String[varint()];
+        for (int i = 0; i < pool.length; i++) {
+            byte[] bytes = new byte[varint()];
+            code.get(bytes);
+            pool[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private int varint() {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = code.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    public boolean hasMoreLines() {
+        return code.hasRemaining();
+    }
+
+    public void advance() {
+        int opcode = code.get() & 0xFF;
+        if (opcode < ARITHMETIC.length) {
+            type = "arithmetic";
+            arg1 = ARITHMETIC[opcode];
+            return;
+        }
+        if (opcode < 16 || opcode > 23) throw new IllegalArgumentException(STR."Unknown .vmb opcode \{opcode}.");
+        type = TYPES[opcode - 16];
+        switch (type) {
+            case "push", "pop" -> {
+                int segment = code.get() & 0xFF;
+                if (segment >= SEGMENTS.length) throw new IllegalArgumentException(STR."Unknown .vmb segment \{segment}.");
+                arg1 = SEGMENTS[segment];
+                arg2 = varint();
+            }
+            case "label", "goto", "if-goto" -> arg1 = pool[varint()];
+            case "function", "call" -> {
+                arg1 = pool[varint()];
+                arg2 = varint();
+            }
+            default -> arg1 = null;
+        }
+    }
+
+    public String commandType() {
+        return type;
+    }
+
+    public String arg1() {
+        return arg1;
+    }
+
+    public int arg2() {
+        return arg2;
+    }
+
+    // The commands as .vm text, for the passes that work on the whole program.
+    public List<String> lines() {
+        List<String> lines = new ArrayList<>();
+        while (hasMoreLines()) {
+            advance();
+            lines.add(switch (type) {
+                case "arithmetic" -> arg1;
+                case "push", "pop", "function", "call" -> STR."\{type} \{arg1} \{arg2}";
+                case "return" -> type;
+                default -> STR."\{type} \{arg1}";
+            });
+        }
+        return lines;
+    }
+}